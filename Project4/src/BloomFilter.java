@@ -0,0 +1,54 @@
+/**
+ * A set of key hashes that answers "maybe" for every hash added to it and "no" for most others, in about a byte per
+ * key. A join can drop the tuples it would never match with it before they reach the hash table, or before earlier
+ * stages spend work on them.
+ */
+public class BloomFilter {
+
+    // Each hash sets this many bits, all in one 64 bit word so a test reads one word.
+    private static final int BITS_PER_HASH = 3;
+
+    private final long[] words;
+    private final int mask;
+
+    /**
+     * @param expected the number of hashes that will be added
+     */
+    public BloomFilter(int expected) {
+        // About 8 bits per hash keeps false positives near 5%.
+        int count = 16;
+        while (count * 8L < expected) {
+            count <<= 1;
+        }
+        words = new long[count];
+        mask = count - 1;
+    }
+
+    public void add(int hash) {
+        int mixed = DataSet.mix(hash);
+        words[mixed & mask] |= bitsOf(mixed);
+    }
+
+    /**
+     * @return false if no hash equal to 'hash' was added
+     */
+    public boolean mightContain(int hash) {
+        int mixed = DataSet.mix(hash);
+        long bits = bitsOf(mixed);
+        return (words[mixed & mask] & bits) == bits;
+    }
+
+    /**
+     * @return the bits of a word that a hash sets, picked by the high bits of the mixed hash while
+     *         the low bits pick the word
+     */
+    private static long bitsOf(int mixed) {
+        long bits = 0;
+        int rest = Integer.reverse(mixed);
+        for (int i = 0; i < BITS_PER_HASH; i++) {
+            bits |= 1L << (rest & 63);
+            rest >>>= 6;
+        }
+        return bits;
+    }
+}
@@ -15,6 +15,47 @@ public class CSVParser {
 
     private PeekableCharacterFileStream stream;
 
+    // The current row's characters. Column i of the row is rowBuffer[fieldStart[i], fieldEnd[i]).
+    private char[] rowBuffer = new char[256];
+    private int rowLength = 0;
+    private int[] fieldStart = new int[0];
+    private int[] fieldEnd = new int[0];
+    private Field[] fields = new Field[0];
+
+    // Columns that advance() reads. Unselected columns are skipped without being copied or validated.
+    private boolean[] selectedColumns = null;
+
+    /**
+     * A view of one column of the current row.
+     */
+    private class Field implements CharSequence {
+        private final int col;
+
+        Field(int col) {
+            this.col = col;
+        }
+
+        @Override
+        public int length() {
+            return fieldEnd[col] - fieldStart[col];
+        }
+
+        @Override
+        public char charAt(int index) {
+            return rowBuffer[fieldStart[col] + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(rowBuffer, fieldStart[col] + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(rowBuffer, fieldStart[col], length());
+        }
+    }
+
     public CSVParser(PeekableCharacterStream stream) {
         this.stream = (PeekableCharacterFileStream) stream;
 
@@ -46,12 +87,20 @@ public class CSVParser {
     }
 
     /**
-     *
-     * @return the value in the next column.
+     * Creates a parser over a stream that starts at a record boundary past the header, such as one chunk of a file.
+     * @param stream stream positioned at the start of a record
+     * @param headers the column names read from the file's header
+     */
+    public CSVParser(PeekableCharacterStream stream, ArrayList<String> headers) {
+        this.stream = (PeekableCharacterFileStream) stream;
+        this.headers = headers;
+    }
+
+    /**
+     * Appends the characters of the next column to the row buffer and consumes the comma after it.
      * @throws RuntimeException if whitespace isn't in double quotes
      */
-    private String getNextColumnValue() {
-        StringBuilder builder = new StringBuilder();
+    private void readNextColumnValue() {
         char nextCharPeeked = (char)stream.peekNextChar();
         boolean allowWhiteSpace = false;
 
@@ -79,13 +128,146 @@ public class CSVParser {
                 stream.getNextChar();
             }
             else {
-                builder.append((char)stream.getNextChar());
+                if (rowLength == rowBuffer.length) {
+                    rowBuffer = Arrays.copyOf(rowBuffer, rowBuffer.length * 2);
+                }
+                rowBuffer[rowLength++] = (char)stream.getNextChar();
+            }
+
+            nextCharPeeked = (char)stream.peekNextChar();
+        }
+    }
+
+    /**
+     * Consumes the next column and the comma after it without keeping its characters.
+     */
+    private void skipNextColumnValue() {
+        char nextCharPeeked = (char)stream.peekNextChar();
+        boolean inQuotes = false;
+
+        if (nextCharPeeked == '\"') {
+            inQuotes = true;
+            stream.getNextChar();
+            nextCharPeeked = (char)stream.peekNextChar();
+        }
+
+        while (stream.moreAvailable()) {
+            if (nextCharPeeked == COMMA) {
+                stream.getNextChar();
+                break;
+            }
+            else if (nextCharPeeked == NEWLINE && !inQuotes) {
+                break;
+            }
+            else if (nextCharPeeked == '\"') {
+                inQuotes = false;
+            }
+            stream.getNextChar();
+            nextCharPeeked = (char)stream.peekNextChar();
+        }
+    }
+
+    /**
+     *
+     * @return the value in the next column.
+     * @throws RuntimeException if whitespace isn't in double quotes
+     */
+    private String getNextColumnValue() {
+        int start = rowLength;
+        readNextColumnValue();
+        String value = new String(rowBuffer, start, rowLength - start);
+        rowLength = start;
+        return value;
+    }
+
+    /**
+     * Moves the cursor to the next row. The row's values are read with getField and stay valid until the next call.
+     * @return false if there are no more rows
+     */
+    public boolean advance() {
+        if (reachedEOF()) {
+            return false;
+        }
+
+        rowLength = 0;
+        if (fieldStart.length != headers.size()) {
+            fieldStart = new int[headers.size()];
+            fieldEnd = new int[headers.size()];
+            fields = new Field[headers.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = new Field(i);
             }
+        }
+
+        if (peekedRow != null) {
+            // The row was already parsed into a map by peekNextRow, copy it back into the buffer.
+            for (int i = 0; i < headers.size(); i++) {
+                String value = peekedRow.get(headers.get(i));
+                fieldStart[i] = rowLength;
+                if (value != null) {
+                    if (rowLength + value.length() > rowBuffer.length) {
+                        rowBuffer = Arrays.copyOf(rowBuffer, Math.max(rowBuffer.length * 2, rowLength + value.length()));
+                    }
+                    value.getChars(0, value.length(), rowBuffer, rowLength);
+                    rowLength += value.length();
+                }
+                fieldEnd[i] = rowLength;
+            }
+            peekedRow = null;
+            return true;
+        }
+
+        boolean reachEndOfRow = false;
+        char nextCharPeeked = (char)stream.peekNextChar();
+
+        for (int i = 0; i < headers.size(); i++) {
+
+            if (nextCharPeeked == NEWLINE) { reachEndOfRow = true; }
+            fieldStart[i] = rowLength;
+            if (!reachEndOfRow) {
+                if (selectedColumns == null || (i < selectedColumns.length && selectedColumns[i])) {
+                    readNextColumnValue();
+                }
+                else {
+                    skipNextColumnValue();
+                }
+            }
+            fieldEnd[i] = rowLength;
 
             nextCharPeeked = (char)stream.peekNextChar();
         }
 
-        return builder.toString();
+        stream.getNextChar();
+
+        return true;
+    }
+
+    /**
+     * Restricts advance() to the given columns. The values of the other columns are skipped and read as null.
+     * @param selectedColumns selectedColumns[i] is true if column i is needed, or null to read every column
+     */
+    public void setSelectedColumns(boolean[] selectedColumns) {
+        this.selectedColumns = selectedColumns;
+    }
+
+    /**
+     * @return the number of columns in each row
+     */
+    public int getFieldCount() {
+        return headers.size();
+    }
+
+    /**
+     * Returns a view of a value in the current row. The view is reused, so it must be copied (toString) to be kept
+     * past the next call to advance.
+     * @param col index of the column
+     * @return the value, or null if the value is empty
+     */
+    public CharSequence getField(int col) {
+        if (fieldStart[col] == fieldEnd[col]) {
+            return null;
+        }
+        return fields[col];
     }
 
     /**
@@ -103,7 +285,7 @@ public class CSVParser {
      */
     public boolean reachedEOF() {
         if (peekedRow == null) {
-            return !stream.moreAvailable();
+            return !stream.moreAvailable() || stream.pastRecordLimit();
         }
 
         return false;
@@ -118,33 +300,20 @@ public class CSVParser {
             return null;
         }
 
-        Map<String, String> nextRow = new HashMap<String, String>();
-
         if (peekedRow != null) {
-            nextRow = peekedRow;
+            Map<String, String> nextRow = peekedRow;
             peekedRow = null;
             return nextRow;
         }
 
-        boolean reachEndOfRow = false;
-        char nextCharPeeked = (char)stream.peekNextChar();
+        advance();
 
-        String columnValue;
+        Map<String, String> nextRow = new HashMap<String, String>();
         for (int i = 0; i < headers.size(); i++) {
-
-            if (nextCharPeeked == NEWLINE) { reachEndOfRow = true; }
-            if (!reachEndOfRow) {
-                columnValue = getNextColumnValue();
-                nextRow.put(headers.get(i), columnValue.isEmpty() ? null : columnValue);
-            } else {
-                nextRow.put(headers.get(i), null);
-            }
-
-            nextCharPeeked = (char)stream.peekNextChar();
+            CharSequence value = getField(i);
+            nextRow.put(headers.get(i), value == null ? null : value.toString());
         }
 
-        stream.getNextChar();
-
         return nextRow;
     }
 
@@ -0,0 +1,131 @@
+/**
+ * One column of a DataSet. Values are addressed by row id, which is the order in which rows were appended.
+ */
+public abstract class Column {
+
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value at 'row' as an Integer, Double, String, or null
+     */
+    public abstract Object get(int row);
+
+    /**
+     * @return a hash of the value at 'row' that is equal for values that are equalsAt each other, even across
+     *         different column types
+     */
+    public abstract int hashAt(int row);
+
+    /**
+     * Mixes the values at rows[0, count) into a batch of hashes, setting hashes[i] to 31 * hashes[i] + hashAt(rows[i]).
+     * Hashing a batch one column at a time keeps the loop on one column, and typed columns override it with a loop
+     * over their primitive values.
+     */
+    public void hashRows(int[] rows, int count, int[] hashes) {
+        for (int i = 0; i < count; i++) {
+            hashes[i] = 31 * hashes[i] + hashAt(rows[i]);
+        }
+    }
+
+    /**
+     * Compares the value at 'row' to the value at 'otherRow' of another column. Like Integer.equals, an integer
+     * never equals a double.
+     */
+    public abstract boolean equalsAt(int row, Column other, int otherRow);
+
+    /**
+     * @return true if 'value' can be appended without changing the type of the column
+     */
+    public abstract boolean accepts(Object value);
+
+    public abstract void append(Object value);
+
+    /**
+     * @return true if values of 'source' can be appended without changing the type of the column
+     */
+    public abstract boolean canAppendFrom(Column source);
+
+    public abstract void appendFrom(Column source, int row);
+
+    /**
+     * @return an empty column of the same type. String columns keep sharing their dictionary.
+     */
+    public abstract Column emptyCopy();
+
+    /**
+     * @return a column with the same values that can be appended to independently of this one
+     */
+    public abstract Column copy();
+
+    /**
+     * Drops every row from 'newSize' on. Used to take back a row that turned out to be a duplicate.
+     */
+    public void truncate(int newSize) {
+        size = newSize;
+    }
+
+    /**
+     * @return a column holding the same values that can also hold 'source''s values
+     */
+    public Column widenFor(Column source) {
+        return toObjectColumn();
+    }
+
+    /**
+     * @return a column holding the same values that can also hold 'value'
+     */
+    public Column widenFor(Object value) {
+        return toObjectColumn();
+    }
+
+    protected ObjectColumn toObjectColumn() {
+        ObjectColumn column = new ObjectColumn();
+        for (int i = 0; i < size; i++) {
+            column.append(get(i));
+        }
+        return column;
+    }
+
+    /**
+     * @return an empty column of the type best suited to hold 'value'
+     */
+    public static Column forValue(Object value) {
+        if (value instanceof Integer) {
+            return new IntColumn();
+        }
+        else if (value instanceof Double) {
+            return new DoubleColumn();
+        }
+        else if (value instanceof String) {
+            return new StringColumn(new StringDictionary());
+        }
+        return new ObjectColumn();
+    }
+
+    public static int hashValue(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Integer) {
+            return Long.hashCode((Integer)value);
+        }
+        return value.hashCode();
+    }
+
+    public static boolean valuesEqual(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.equals(b);
+    }
+
+    protected static int grow(int capacity, int needed) {
+        return Math.max(needed, Math.max(INITIAL_CAPACITY, capacity * 2));
+    }
+}
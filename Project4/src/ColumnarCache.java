@@ -0,0 +1,334 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A binary snapshot of a loaded fact, kept next to its CSV file so later runs don't have to parse the file again.
+ * The snapshot stores each column's values as one array, and it is only used while the CSV file has the size and
+ * modification time it had when the snapshot was written. Snapshots are memory mapped when they are read.
+ *
+ * Layout: magic, version, CSV size and modification time, the headers, the row count, then for each column a
+ * type byte followed by its values. String columns hold a table of their distinct strings followed by a code for
+ * each row.
+ */
+public class ColumnarCache {
+
+    private static final String EXTENSION = ".cache";
+    private static final int MAGIC = 0x4E524443;
+    private static final int VERSION = 1;
+
+    private static final byte INT = 1;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+    private static final byte OBJECT = 5;
+
+    // Tags of the values of an OBJECT column.
+    private static final byte NULL_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+    private static final byte DOUBLE_VALUE = 3;
+    private static final byte STRING_VALUE = 4;
+
+    private static File cacheFile(String csvPath) {
+        return new File(csvPath + EXTENSION);
+    }
+
+    /**
+     * @return true if a snapshot of the CSV file can be written next to it
+     */
+    public static boolean canWrite(String csvPath) {
+        File directory = cacheFile(csvPath).getAbsoluteFile().getParentFile();
+        return directory != null && directory.canWrite();
+    }
+
+    /**
+     * Reads the snapshot of a CSV file.
+     * @param selectedColumns columns to read, see CSVParser.setSelectedColumns
+     * @return the fact, the same as parsing the CSV file would give, or null if there is no snapshot of the file
+     *         as it is now
+     */
+    public static DataSet read(String csvPath, boolean[] selectedColumns) {
+        File csv = new File(csvPath);
+        File cache = cacheFile(csvPath);
+        if (!cache.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r")) {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                buffer.getLong() != csv.length() || buffer.getLong() != csv.lastModified()) {
+                return null;
+            }
+
+            ArrayList<String> headers = new ArrayList<>();
+            int columnCount = buffer.getInt();
+            for (int col = 0; col < columnCount; col++) {
+                headers.add(readString(buffer));
+            }
+            int rows = buffer.getInt();
+            if (rows == 0) {
+                return new DataSet(headers);
+            }
+
+            Column[] columns = new Column[columnCount];
+            for (int col = 0; col < columnCount; col++) {
+                columns[col] = readColumn(buffer, rows, headers.get(col));
+            }
+            return DataSet.fromColumns(headers, columns, rows, selectedColumns);
+        }
+        catch (IOException | RuntimeException e) {
+            return null; // a damaged snapshot is parsed again like a missing one
+        }
+    }
+
+    private static Column readColumn(ByteBuffer buffer, int rows, String header) {
+        byte type = buffer.get();
+        switch (type) {
+            case INT: {
+                int[] values = new int[rows];
+                buffer.asIntBuffer().get(values);
+                buffer.position(buffer.position() + rows * Integer.BYTES);
+                return new IntColumn(values, rows);
+            }
+            case DOUBLE: {
+                double[] values = new double[rows];
+                buffer.asDoubleBuffer().get(values);
+                buffer.position(buffer.position() + rows * Double.BYTES);
+                return new DoubleColumn(values, rows);
+            }
+            case STRING: {
+                // Codes in the snapshot number its own strings, map them to the codes of the column's dictionary.
+                StringDictionary dictionary = StringDictionary.forColumn(header);
+                int[] codeOf = dictionary.internAll(readStrings(buffer));
+                int[] codes = new int[rows];
+                buffer.asIntBuffer().get(codes);
+                buffer.position(buffer.position() + rows * Integer.BYTES);
+                for (int row = 0; row < rows; row++) {
+                    codes[row] = codeOf[codes[row]];
+                }
+                return new StringColumn(dictionary, codes, rows);
+            }
+            case OBJECT: {
+                ObjectColumn column = new ObjectColumn();
+                for (int row = 0; row < rows; row++) {
+                    byte tag = buffer.get();
+                    switch (tag) {
+                        case NULL_VALUE:   column.append(null); break;
+                        case INT_VALUE:    column.append(buffer.getInt()); break;
+                        case DOUBLE_VALUE: column.append(buffer.getDouble()); break;
+                        case STRING_VALUE: column.append(readString(buffer)); break;
+                        default: throw new IllegalArgumentException("Unknown value tag " + tag);
+                    }
+                }
+                return column;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown column type " + type);
+        }
+    }
+
+    /**
+     * Reads a string table: the number of strings, the length of each, then all of their characters.
+     */
+    private static String[] readStrings(ByteBuffer buffer) {
+        int[] lengths = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(lengths);
+        buffer.position(buffer.position() + lengths.length * Integer.BYTES);
+        int total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        char[] chars = new char[total];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + total * Character.BYTES);
+
+        String[] strings = new String[lengths.length];
+        int offset = 0;
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = new String(chars, offset, lengths[i]);
+            offset += lengths[i];
+        }
+        return strings;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        char[] chars = new char[buffer.getInt()];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + chars.length * Character.BYTES);
+        return new String(chars);
+    }
+
+    /**
+     * Writes a snapshot of a fact loaded from every column of a CSV file. The snapshot is written to a temporary
+     * file first, so a reader never sees half of it. Failing to write it only costs the next run a parse.
+     * @param csvLength size of the CSV file before it was parsed
+     * @param csvModified modification time of the CSV file before it was parsed
+     */
+    public static void write(String csvPath, long csvLength, long csvModified, DataSet set) {
+        File cache = cacheFile(csvPath);
+        File temp = null;
+        try {
+            temp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(csvLength);
+                out.writeLong(csvModified);
+                out.writeInt(set.orderedHeaders.size());
+                for (String header : set.orderedHeaders) {
+                    writeString(out, header);
+                }
+                out.writeInt(set.size());
+                if (set.size() > 0) {
+                    for (Column column : set.columns) {
+                        writeColumn(out, column, set.size());
+                    }
+                }
+            }
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads int arrays stored next to a CSV file by writeArrays, such as the arrays of an index.
+     * @param name what the arrays are, which becomes part of their file name
+     * @return the arrays, or null if there are none for the CSV file as it is now
+     */
+    public static int[][] readArrays(String csvPath, String name) {
+        File csv = new File(csvPath);
+        File cache = cacheFile(csvPath + "." + name);
+        if (!cache.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r")) {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                buffer.getLong() != csv.length() || buffer.getLong() != csv.lastModified()) {
+                return null;
+            }
+            int[][] arrays = new int[buffer.getInt()][];
+            for (int i = 0; i < arrays.length; i++) {
+                arrays[i] = new int[buffer.getInt()];
+                buffer.asIntBuffer().get(arrays[i]);
+                buffer.position(buffer.position() + arrays[i].length * Integer.BYTES);
+            }
+            return arrays;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores int arrays next to a CSV file, keyed by its size and modification time like a snapshot.
+     */
+    public static void writeArrays(String csvPath, String name, long csvLength, long csvModified, int[][] arrays) {
+        File cache = cacheFile(csvPath + "." + name);
+        File temp = null;
+        try {
+            temp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(csvLength);
+                out.writeLong(csvModified);
+                out.writeInt(arrays.length);
+                for (int[] array : arrays) {
+                    out.writeInt(array.length);
+                    for (int value : array) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, Column column, int rows) throws IOException {
+        if (column instanceof IntColumn) {
+            out.writeByte(INT);
+            int[] values = ((IntColumn)column).getValues();
+            for (int row = 0; row < rows; row++) {
+                out.writeInt(values[row]);
+            }
+        }
+        else if (column instanceof DoubleColumn) {
+            out.writeByte(DOUBLE);
+            double[] values = ((DoubleColumn)column).getValues();
+            for (int row = 0; row < rows; row++) {
+                out.writeDouble(values[row]);
+            }
+        }
+        else if (column instanceof StringColumn) {
+            // The dictionary is shared with other facts, so only the strings of this column are written.
+            StringColumn strings = (StringColumn)column;
+            int[] codes = strings.getCodes();
+            int[] localCode = new int[strings.getDictionary().size()];
+            Arrays.fill(localCode, -1);
+            ArrayList<String> values = new ArrayList<>();
+            for (int row = 0; row < rows; row++) {
+                if (localCode[codes[row]] == -1) {
+                    localCode[codes[row]] = values.size();
+                    values.add(strings.getDictionary().get(codes[row]));
+                }
+            }
+            out.writeByte(STRING);
+            out.writeInt(values.size());
+            for (String value : values) {
+                out.writeInt(value.length());
+            }
+            for (String value : values) {
+                out.writeChars(value);
+            }
+            for (int row = 0; row < rows; row++) {
+                out.writeInt(localCode[codes[row]]);
+            }
+        }
+        else {
+            out.writeByte(OBJECT);
+            for (int row = 0; row < rows; row++) {
+                Object value = column.get(row);
+                if (value == null) {
+                    out.writeByte(NULL_VALUE);
+                }
+                else if (value instanceof Integer) {
+                    out.writeByte(INT_VALUE);
+                    out.writeInt((Integer)value);
+                }
+                else if (value instanceof Double) {
+                    out.writeByte(DOUBLE_VALUE);
+                    out.writeDouble((Double)value);
+                }
+                else {
+                    out.writeByte(STRING_VALUE);
+                    writeString(out, value.toString());
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+}
@@ -0,0 +1,602 @@
+/**
+ * A relation of a rule body compiled against the columns of one DataSet. Column positions are resolved and value
+ * types are checked once when the expression is built, so evaluating a row is a few array reads and compares.
+ * Every expression gives the same answer NRDatalogExecutionTree's tree walking filter gave: numbers are compared
+ * and computed as doubles, booleans used as operands count as 1 or 0, and strings only combine with strings.
+ */
+public abstract class CompiledExpression {
+
+    /**
+     * What an expression is known to produce before any row is seen.
+     */
+    public enum Type {
+        NUMBER,  // an Integer or a Double, readable with evaluateDouble
+        BOOLEAN, // a Boolean, readable with evaluateBoolean
+        STRING,  // a String, readable with evaluateString
+        ANY      // only known once a row is evaluated
+    }
+
+    protected final Type type;
+
+    protected CompiledExpression(Type type) {
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the value of the expression for a row, boxed the way the uncompiled filter would box it
+     */
+    public abstract Object evaluate(int row);
+
+    /**
+     * Only valid for NUMBER and BOOLEAN expressions.
+     */
+    public double evaluateDouble(int row) {
+        return ((Number)evaluate(row)).doubleValue();
+    }
+
+    /**
+     * Only valid for BOOLEAN expressions, or ANY expressions that turn out to be relations.
+     */
+    public boolean evaluateBoolean(int row) {
+        return (boolean)evaluate(row);
+    }
+
+    /**
+     * Only valid for STRING expressions.
+     */
+    public String evaluateString(int row) {
+        return (String)evaluate(row);
+    }
+
+    /**
+     * Clears the bits of 'selection' whose rows fail this relation. Bit i belongs to row from + i, and rows whose
+     * bit is already clear are not evaluated by the row-at-a-time fallback.
+     * Only valid for BOOLEAN expressions, or ANY expressions that turn out to be relations.
+     */
+    public void select(int from, int count, long[] selection) {
+        for (int i = 0; i < count; i++) {
+            if ((selection[i >>> 6] & (1L << i)) != 0 && !evaluateBoolean(from + i)) {
+                selection[i >>> 6] &= ~(1L << i);
+            }
+        }
+    }
+
+    private boolean isNumeric() {
+        return type == Type.NUMBER || type == Type.BOOLEAN;
+    }
+
+    /**
+     * @return an expression that always gives 'value'
+     */
+    public static CompiledExpression constant(Object value) {
+        if (value instanceof Integer || value instanceof Double) {
+            return new NumberConstant((Number)value);
+        }
+        if (value instanceof String) {
+            return new StringConstant((String)value);
+        }
+        return new AnyConstant(value);
+    }
+
+    /**
+     * @return an expression that reads 'column' at the evaluated row
+     */
+    public static CompiledExpression column(Column column) {
+        return column(column, null);
+    }
+
+    /**
+     * @param rowIds if not null, evaluating row r reads 'column' at rowIds[r]
+     * @return an expression that reads 'column' at the evaluated row
+     */
+    public static CompiledExpression column(Column column, int[] rowIds) {
+        if (column instanceof IntColumn) {
+            return new IntColumnValue((IntColumn)column, rowIds);
+        }
+        if (column instanceof DoubleColumn) {
+            return new DoubleColumnValue((DoubleColumn)column, rowIds);
+        }
+        if (column instanceof StringColumn) {
+            return new StringColumnValue((StringColumn)column, rowIds);
+        }
+        return new AnyColumnValue(column, rowIds);
+    }
+
+    /**
+     * @return an expression applying a binary operator such as "<" or "+" to two expressions
+     */
+    public static CompiledExpression binary(String operator, CompiledExpression left, CompiledExpression right) {
+        int code = Operator.code(operator);
+        if (left.isNumeric() && right.isNumeric()) {
+            if (Operator.isComparison(code)) {
+                return new NumberComparison(code, left, right);
+            }
+            if (Operator.isArithmetic(code)) {
+                return new NumberArithmetic(code, left, right);
+            }
+        }
+        else if (left.type == Type.STRING && right.type == Type.STRING) {
+            if (code == Operator.EQUAL || code == Operator.NOT_EQUAL) {
+                if (left instanceof StringColumnValue && right instanceof StringConstant) {
+                    return new StringCodeEquality(code, (StringColumnValue)left, (StringConstant)right);
+                }
+                if (right instanceof StringColumnValue && left instanceof StringConstant) {
+                    return new StringCodeEquality(code, (StringColumnValue)right, (StringConstant)left);
+                }
+            }
+            if (Operator.isComparison(code)) {
+                return new StringComparison(code, left, right);
+            }
+            if (code == Operator.ADD) {
+                return new StringConcatenation(left, right);
+            }
+        }
+        return new AnyBinary(operator, left, right);
+    }
+
+    /**
+     * @return an expression applying a unary operator such as "!" to an expression
+     */
+    public static CompiledExpression unary(String operator, CompiledExpression operand) {
+        return new AnyUnary(operator, operand);
+    }
+
+    /**
+     * @return an expression that fails with 'message' whenever a row is evaluated
+     */
+    public static CompiledExpression invalid(String message) {
+        return new CompiledExpression(Type.ANY) {
+            @Override
+            public Object evaluate(int row) {
+                throw new ArithmeticException(message);
+            }
+        };
+    }
+
+    private static class NumberConstant extends CompiledExpression {
+        private final Number value;
+        private final double doubleValue;
+
+        NumberConstant(Number value) {
+            super(Type.NUMBER);
+            this.value = value;
+            doubleValue = value.doubleValue();
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return value;
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return doubleValue;
+        }
+    }
+
+    private static class StringConstant extends CompiledExpression {
+        private final String value;
+
+        StringConstant(String value) {
+            super(Type.STRING);
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return value;
+        }
+
+        @Override
+        public String evaluateString(int row) {
+            return value;
+        }
+    }
+
+    private static class AnyConstant extends CompiledExpression {
+        private final Object value;
+
+        AnyConstant(Object value) {
+            super(value instanceof Boolean ? Type.BOOLEAN : Type.ANY);
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return value;
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return (Boolean)value ? 1 : 0;
+        }
+    }
+
+    /**
+     * Reads a column either at the evaluated row, or at rowIds[row] when the rows being evaluated are tuples of a
+     * pipeline that point into several sets.
+     */
+    private abstract static class ColumnValue extends CompiledExpression {
+        protected final int[] rowIds;
+
+        ColumnValue(Type type, int[] rowIds) {
+            super(type);
+            this.rowIds = rowIds;
+        }
+
+        protected int rowOf(int row) {
+            return rowIds == null ? row : rowIds[row];
+        }
+    }
+
+    private static class IntColumnValue extends ColumnValue {
+        private final IntColumn column;
+        private int[] gathered = new int[0];
+
+        IntColumnValue(IntColumn column, int[] rowIds) {
+            super(Type.NUMBER, rowIds);
+            this.column = column;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return column.getInt(rowOf(row));
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return column.getInt(rowOf(row));
+        }
+
+        /**
+         * Copies the values at rowIds[from, from + count) next to each other, so kernels can run over them.
+         */
+        int[] gather(int from, int count) {
+            if (gathered.length < count) {
+                gathered = new int[count];
+            }
+            int[] values = column.getValues();
+            for (int i = 0; i < count; i++) {
+                gathered[i] = values[rowIds[from + i]];
+            }
+            return gathered;
+        }
+    }
+
+    private static class DoubleColumnValue extends ColumnValue {
+        private final DoubleColumn column;
+        private double[] gathered = new double[0];
+
+        DoubleColumnValue(DoubleColumn column, int[] rowIds) {
+            super(Type.NUMBER, rowIds);
+            this.column = column;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return column.getDouble(rowOf(row));
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return column.getDouble(rowOf(row));
+        }
+
+        /**
+         * Copies the values at rowIds[from, from + count) next to each other, so kernels can run over them.
+         */
+        double[] gather(int from, int count) {
+            if (gathered.length < count) {
+                gathered = new double[count];
+            }
+            double[] values = column.getValues();
+            for (int i = 0; i < count; i++) {
+                gathered[i] = values[rowIds[from + i]];
+            }
+            return gathered;
+        }
+    }
+
+    private static class StringColumnValue extends ColumnValue {
+        private final StringColumn column;
+        private int[] gathered = new int[0];
+
+        StringColumnValue(StringColumn column, int[] rowIds) {
+            super(Type.STRING, rowIds);
+            this.column = column;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return column.get(rowOf(row));
+        }
+
+        @Override
+        public String evaluateString(int row) {
+            return (String)column.get(rowOf(row));
+        }
+
+        /**
+         * Copies the codes at rowIds[from, from + count) next to each other, so kernels can run over them.
+         */
+        int[] gatherCodes(int from, int count) {
+            if (gathered.length < count) {
+                gathered = new int[count];
+            }
+            int[] codes = column.getCodes();
+            for (int i = 0; i < count; i++) {
+                gathered[i] = codes[rowIds[from + i]];
+            }
+            return gathered;
+        }
+    }
+
+    private static class AnyColumnValue extends ColumnValue {
+        private final Column column;
+
+        AnyColumnValue(Column column, int[] rowIds) {
+            super(Type.ANY, rowIds);
+            this.column = column;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return column.get(rowOf(row));
+        }
+    }
+
+    private static class NumberComparison extends CompiledExpression {
+        private final int comparison;
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        NumberComparison(int comparison, CompiledExpression left, CompiledExpression right) {
+            super(Type.BOOLEAN);
+            this.comparison = comparison;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return evaluateBoolean(row);
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return evaluateBoolean(row) ? 1 : 0;
+        }
+
+        @Override
+        public boolean evaluateBoolean(int row) {
+            return Operator.compare(comparison, left.evaluateDouble(row), right.evaluateDouble(row));
+        }
+
+        /**
+         * A column compared to a constant runs as one kernel over the whole primitive column.
+         */
+        @Override
+        public void select(int from, int count, long[] selection) {
+            CompiledExpression columnSide = left;
+            CompiledExpression constantSide = right;
+            int columnComparison = comparison;
+            if (left instanceof NumberConstant) {
+                columnSide = right;
+                constantSide = left;
+                columnComparison = Operator.mirror(comparison);
+            }
+
+            if (constantSide instanceof NumberConstant) {
+                double constant = ((NumberConstant)constantSide).doubleValue;
+                // Ints only compare as ints against a constant that is exactly an int, which -0.0 is not.
+                if (columnSide instanceof IntColumnValue && Double.compare((int)constant, constant) == 0) {
+                    IntColumnValue value = (IntColumnValue)columnSide;
+                    if (value.rowIds == null) {
+                        Operator.select(columnComparison, value.column.getValues(), from, count, (int)constant, selection);
+                    }
+                    else {
+                        Operator.select(columnComparison, value.gather(from, count), 0, count, (int)constant, selection);
+                    }
+                    return;
+                }
+                if (columnSide instanceof DoubleColumnValue) {
+                    DoubleColumnValue value = (DoubleColumnValue)columnSide;
+                    if (value.rowIds == null) {
+                        Operator.select(columnComparison, value.column.getValues(), from, count, constant, selection);
+                    }
+                    else {
+                        Operator.select(columnComparison, value.gather(from, count), 0, count, constant, selection);
+                    }
+                    return;
+                }
+            }
+            super.select(from, count, selection);
+        }
+    }
+
+    private static class NumberArithmetic extends CompiledExpression {
+        private final int operator;
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        NumberArithmetic(int operator, CompiledExpression left, CompiledExpression right) {
+            super(Type.NUMBER);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return evaluateDouble(row);
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return Operator.arithmetic(operator, left.evaluateDouble(row), right.evaluateDouble(row));
+        }
+    }
+
+    private static class StringComparison extends CompiledExpression {
+        private final int comparison;
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        StringComparison(int comparison, CompiledExpression left, CompiledExpression right) {
+            super(Type.BOOLEAN);
+            this.comparison = comparison;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return evaluateBoolean(row);
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return evaluateBoolean(row) ? 1 : 0;
+        }
+
+        @Override
+        public boolean evaluateBoolean(int row) {
+            return Operator.compare(comparison, left.evaluateString(row), right.evaluateString(row));
+        }
+    }
+
+    /**
+     * Compares a string column to a string constant through the column's dictionary, so rows are checked by code.
+     */
+    private static class StringCodeEquality extends CompiledExpression {
+        private final int comparison;
+        private final StringColumnValue value;
+        private final StringColumn column;
+        private final int code;
+
+        StringCodeEquality(int comparison, StringColumnValue column, StringConstant constant) {
+            super(Type.BOOLEAN);
+            this.comparison = comparison;
+            value = column;
+            this.column = column.column;
+            code = this.column.getDictionary().lookup(constant.value); // -1 never matches a row
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return evaluateBoolean(row);
+        }
+
+        @Override
+        public double evaluateDouble(int row) {
+            return evaluateBoolean(row) ? 1 : 0;
+        }
+
+        @Override
+        public boolean evaluateBoolean(int row) {
+            return Operator.compare(comparison, column.getCode(value.rowOf(row)), code);
+        }
+
+        @Override
+        public void select(int from, int count, long[] selection) {
+            if (value.rowIds == null) {
+                Operator.select(comparison, column.getCodes(), from, count, code, selection);
+            }
+            else {
+                Operator.select(comparison, value.gatherCodes(from, count), 0, count, code, selection);
+            }
+        }
+    }
+
+    private static class StringConcatenation extends CompiledExpression {
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        StringConcatenation(CompiledExpression left, CompiledExpression right) {
+            super(Type.STRING);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            return evaluateString(row);
+        }
+
+        @Override
+        public String evaluateString(int row) {
+            return left.evaluateString(row) + right.evaluateString(row);
+        }
+    }
+
+    /**
+     * A binary operator whose operand types are only known per row. Checks the values the same way the uncompiled
+     * filter did and hands them to Operator.
+     */
+    private static class AnyBinary extends CompiledExpression {
+        private final Operator op = new Operator();
+        private final String operator;
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        AnyBinary(String operator, CompiledExpression left, CompiledExpression right) {
+            super(Type.ANY);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            Object leftResult = left.evaluate(row);
+            Object rightResult = right.evaluate(row);
+
+            // Convert booleans to 1 or 0.
+            if (leftResult instanceof Boolean) {
+                leftResult = (Boolean)leftResult == true ? 1 : 0;
+            }
+
+            if (rightResult instanceof Boolean) {
+                rightResult = (Boolean)rightResult == true ? 1 : 0;
+            }
+
+            if (leftResult instanceof Double || rightResult instanceof Double) {
+                return op.compute(operator, Double.valueOf(leftResult.toString()), Double.valueOf(rightResult.toString()));
+            }
+            else if (leftResult instanceof Integer && rightResult instanceof Integer) {
+                return op.compute(operator, (Integer)leftResult, (Integer)rightResult);
+            }
+            else if ((leftResult instanceof String && !(rightResult instanceof String)) || (!(leftResult instanceof String) && (rightResult instanceof String))){
+                throw new ArithmeticException("Can't operate on a string and non-string");
+            }
+            else {
+                return op.compute(operator, (String)leftResult, (String)rightResult);
+            }
+        }
+    }
+
+    private static class AnyUnary extends CompiledExpression {
+        private final Operator op = new Operator();
+        private final String operator;
+        private final CompiledExpression operand;
+
+        AnyUnary(String operator, CompiledExpression operand) {
+            super(Type.ANY);
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        public Object evaluate(int row) {
+            Object value = operand.evaluate(row);
+            if (value instanceof Boolean && operand instanceof AnyConstant) {
+                value = (Boolean)value == true ? 1 : 0;
+            }
+            return op.computeUnary(operator, value);
+        }
+    }
+}
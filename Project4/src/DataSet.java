@@ -1,80 +1,484 @@
-import javax.xml.crypto.Data;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 
 public class DataSet {
 
+    // Number of rows that batch operators hash, probe or filter at a time.
+    public static final int BATCH_SIZE = 1024;
+
     public HashMap<String, Integer> headers;
     public ArrayList<String> orderedHeaders;
 
-    public HashSet<ArrayList<Object>> data;
+    // Rows are stored column by column. Row ids are positions in the columns, in the order rows were added.
+    // A column is null until the first row is added, so that its type can be picked from that row.
+    public Column[] columns;
+    private int size = 0;
+
+    // Open addressing table of row id + 1 (0 is an empty slot) used to keep rows distinct.
+    private int[] slots = new int[16];
+    private int[] rowHashes = new int[16];
 
+    // Cached results of estimateDistinct, valid while the DataSet still has distinctCountsSize rows.
+    private int[] distinctCounts = null;
+    private int distinctCountsSize = 0;
+
+    /**
+     * Reads every row of a CSV file. The first row fixes the type of each column and values of that type are
+     * parsed straight into the column's array, a column is only widened when a value of another type turns up.
+     */
     public DataSet(CSVParser parser) {
-        headers = new HashMap<>();
-        orderedHeaders = new ArrayList<>();
-        data = new HashSet<>();
-        Integer index = 0;
-        for (String header : parser.getHeaders()) {
-            headers.put(header, index++);
-            orderedHeaders.add(header);
-        }
-        while(!parser.reachedEOF()) {
-            HashMap<String, String> row = (HashMap<String, String>) parser.getNextRow();
-            ArrayList<Object> dataRow = new ArrayList<Object>(index);
-            for(String header : parser.getHeaders()) {
-                dataRow.add(parseString(row.get(header)));
+        this(parser, true);
+    }
+
+    /**
+     * Reads every row of a CSV file, see DataSet(CSVParser).
+     * @param sharedDictionaries true to intern strings in the dictionaries shared by the columns of every fact with
+     *                           the same header, false to give each string column a dictionary of its own, which
+     *                           one thread can fill without waiting for others. See shareDictionaries.
+     */
+    public DataSet(CSVParser parser, boolean sharedDictionaries) {
+        this(parser.getHeaders());
+        int columnCount = columns.length;
+        NumberParser numbers = new NumberParser();
+        while(parser.advance()) {
+            for (int col = 0; col < columnCount; col++) {
+                CharSequence field = parser.getField(col);
+                Column column = columns[col];
+                Object value = null;
+                if (field != null) {
+                    int type = numbers.parse(field);
+                    if (type == NumberParser.INT && column instanceof IntColumn) {
+                        ((IntColumn)column).appendInt(numbers.getInt());
+                        continue;
+                    }
+                    if (type == NumberParser.DOUBLE && column instanceof DoubleColumn) {
+                        ((DoubleColumn)column).appendDouble(numbers.getDouble());
+                        continue;
+                    }
+                    if (type == NumberParser.STRING && column instanceof StringColumn) {
+                        // Strings are interned straight from the parser's buffer.
+                        ((StringColumn)column).appendCode(((StringColumn)column).getDictionary().intern(field));
+                        continue;
+                    }
+                    value = numbers.getValue(field, type);
+                }
+
+                if (column == null) {
+                    columns[col] = value instanceof String
+                            ? new StringColumn(sharedDictionaries ? StringDictionary.forColumn(orderedHeaders.get(col))
+                                                                  : new StringDictionary())
+                            : Column.forValue(value);
+                }
+                else if (!column.accepts(value)) {
+                    columns[col] = column.widenFor(value);
+                }
+                columns[col].append(value);
             }
-            data.add(dataRow);
+            commitRow();
         }
     }
 
-    public DataSet(HashMap<String, Integer> headers, DataSet set) {
-        this.headers = headers;
+    /**
+     * Creates an empty DataSet whose columns have the same types as 'prototypes'.
+     */
+    public DataSet(ArrayList<String> headers, Column[] prototypes) {
+        this(headers);
+        for (int i = 0; i < prototypes.length; i++) {
+            columns[i] = prototypes[i] == null ? null : prototypes[i].emptyCopy();
+        }
+    }
 
-        data = new HashSet<>();
-        for (ArrayList<Object> row : set.data) {
-            ArrayList<Object> items = new ArrayList<>();
-            for (Integer index : headers.values()) {
-                items.add(row.get(index));
+    /**
+     * Builds a DataSet of the distinct rows of some of the columns of a table, the other columns hold null in
+     * every row, like the columns CSVParser skips.
+     * @param columns the table's columns, each with 'size' values. The table's rows must be distinct, and when
+     *                every column is kept the DataSet takes the columns over instead of copying them.
+     * @param selectedColumns selectedColumns[i] is true if column i is kept, or null to keep every column
+     */
+    public static DataSet fromColumns(ArrayList<String> headers, Column[] columns, int size, boolean[] selectedColumns) {
+        return fromColumns(headers, columns, size, selectedColumns, null);
+    }
+
+    /**
+     * Same as fromColumns above, and also tells which row of the DataSet each row of the table became.
+     * @param rowOf set to the row of the DataSet that row i of the table is equal to, or null
+     */
+    public static DataSet fromColumns(ArrayList<String> headers, Column[] columns, int size, boolean[] selectedColumns,
+                                      int[] rowOf) {
+        DataSet set = new DataSet(headers);
+        if (selectedColumns == null) {
+            // The rows of a whole table are already distinct, so the columns are kept and only the rows are hashed.
+            System.arraycopy(columns, 0, set.columns, 0, columns.length);
+            set.rowHashes = new int[Math.max(size, 16)];
+            Arrays.fill(set.rowHashes, 0, size, 1);
+            int[] rows = new int[size];
+            for (int row = 0; row < size; row++) {
+                rows[row] = row;
+            }
+            for (Column column : columns) {
+                column.hashRows(rows, size, set.rowHashes);
+            }
+            set.size = size;
+            if (rowOf != null) {
+                System.arraycopy(rows, 0, rowOf, 0, size);
             }
-            data.add(items);
+            int capacity = 16;
+            while (capacity < size * 2) {
+                capacity <<= 1;
+            }
+            set.rehash(capacity);
+            return set;
         }
-    }
 
-    public DataSet(HashMap<String, Integer> headers, HashSet<ArrayList<Object>> data) {
-        this.headers = headers;
-        this.data = data;
+        int[] batch = new int[BATCH_SIZE];
+        int[] nullRows = new int[BATCH_SIZE];
+        int[] landed = rowOf == null ? null : new int[BATCH_SIZE];
+        ObjectColumn nulls = new ObjectColumn();
+        nulls.append(null);
+
+        Column[] sources = new Column[columns.length];
+        int[][] rows = new int[columns.length][];
+        for (int col = 0; col < columns.length; col++) {
+            boolean selected = selectedColumns == null || (col < selectedColumns.length && selectedColumns[col]);
+            sources[col] = selected ? columns[col] : nulls;
+            rows[col] = selected ? batch : nullRows;
+        }
+        for (int start = 0; start < size; start += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, size - start);
+            for (int i = 0; i < count; i++) {
+                batch[i] = start + i;
+            }
+            set.appendRows(sources, rows, count, landed);
+            if (rowOf != null) {
+                System.arraycopy(landed, 0, rowOf, start, count);
+            }
+        }
+        return set;
     }
 
-    public DataSet(ArrayList<String> headers, HashSet<ArrayList<Object>> data) {
-        this.data = data;
+    /**
+     * Creates an empty DataSet. Its columns are created on the first row that is added.
+     */
+    public DataSet(ArrayList<String> headers) {
         this.orderedHeaders = headers;
-        Integer index = 0;
         this.headers = new HashMap<>();
+        Integer index = 0;
         for (String header : headers) {
             this.headers.put(header, index++);
         }
+        columns = new Column[headers.size()];
     }
 
-    public DataSet() {
-        this.headers = new HashMap<>();
-        this.data = new HashSet<>();
-        this.orderedHeaders = new ArrayList<>();
+    /**
+     * @return a copy of this DataSet with its columns renamed to 'headers'
+     */
+    public DataSet renamed(ArrayList<String> headers) {
+        DataSet set = new DataSet(headers);
+        for (int i = 0; i < columns.length; i++) {
+            set.columns[i] = columns[i] == null ? null : columns[i].copy();
+        }
+        set.size = size;
+        set.slots = slots.clone();
+        set.rowHashes = rowHashes.clone();
+        return set;
     }
 
-    public static Object parseString(String value) {
-        try {
-            return Integer.parseInt(value);
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the number of distinct values in a column by counting distinct value hashes.
+     * The count is cached until rows are added.
+     */
+    public int estimateDistinct(int col) {
+        if (distinctCounts == null || distinctCountsSize != size) {
+            distinctCounts = new int[columns.length];
+            Arrays.fill(distinctCounts, -1);
+            distinctCountsSize = size;
+        }
+        if (distinctCounts[col] == -1) {
+            distinctCounts[col] = countDistinctHashes(columns[col]);
+        }
+        return distinctCounts[col];
+    }
+
+    private int countDistinctHashes(Column column) {
+        int[] table = new int[Integer.highestOneBit(Math.max(size, 8)) * 4];
+        boolean seenZero = false;
+        int count = 0;
+        int mask = table.length - 1;
+        for (int row = 0; row < size; row++) {
+            int hash = column.hashAt(row);
+            if (hash == 0) {
+                if (!seenZero) {
+                    seenZero = true;
+                    count++;
+                }
+                continue;
+            }
+            int slot = mix(hash) & mask;
+            while (table[slot] != 0 && table[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                table[slot] = hash;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public Object get(int row, int col) {
+        return columns[col].get(row);
+    }
+
+    /**
+     * @return the values of a row, in column order
+     */
+    public ArrayList<Object> getRow(int row) {
+        ArrayList<Object> values = new ArrayList<>(columns.length);
+        for (Column column : columns) {
+            values.add(column.get(row));
         }
-        catch (NumberFormatException e) {
-            try {
-                return Double.parseDouble(value);
+        return values;
+    }
+
+    /**
+     * Adds a row made of one value from each of 'sources'. Column i of the new row is row rows[i] of sources[i].
+     * @return true if the row was added, false if the DataSet already held it
+     */
+    public boolean appendRow(Column[] sources, int[] rows) {
+        for (int col = 0; col < columns.length; col++) {
+            if (columns[col] == null) {
+                columns[col] = sources[col].emptyCopy();
+            }
+            else if (!columns[col].canAppendFrom(sources[col])) {
+                columns[col] = columns[col].widenFor(sources[col]);
+            }
+            columns[col].appendFrom(sources[col], rows[col]);
+        }
+        return commitRow();
+    }
+
+    /**
+     * Adds a row of 'source', which must have the same number of columns.
+     * @return true if the row was added, false if the DataSet already held it
+     */
+    public boolean appendRow(DataSet source, int row) {
+        for (int col = 0; col < columns.length; col++) {
+            Column sourceColumn = source.columns[col];
+            if (columns[col] == null) {
+                columns[col] = sourceColumn.emptyCopy();
             }
-            catch (NumberFormatException e2) {
-                return value;
+            else if (!columns[col].canAppendFrom(sourceColumn)) {
+                columns[col] = columns[col].widenFor(sourceColumn);
             }
+            columns[col].appendFrom(sourceColumn, row);
         }
+        return commitRow();
+    }
+
+    /**
+     * Adds every row of 'source', which must have the same number of columns.
+     */
+    public void addAll(DataSet source) {
+        int[] batch = new int[BATCH_SIZE];
+        int[][] rows = new int[columns.length][];
+        Arrays.fill(rows, batch);
+        for (int start = 0; start < source.size; start += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, source.size - start);
+            for (int i = 0; i < count; i++) {
+                batch[i] = start + i;
+            }
+            appendRows(source.columns, rows, count);
+        }
+    }
+
+    /**
+     * Moves string columns that have dictionaries of their own over to the dictionaries shared by columns with the
+     * same header. Equal strings hash the same in any dictionary, so the rows keep their ids.
+     */
+    public void shareDictionaries() {
+        for (int col = 0; col < columns.length; col++) {
+            if (columns[col] instanceof StringColumn) {
+                StringDictionary shared = StringDictionary.forColumn(orderedHeaders.get(col));
+                if (((StringColumn)columns[col]).getDictionary() != shared) {
+                    columns[col] = ((StringColumn)columns[col]).recode(shared);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a batch of rows made of values from 'sources'. Column c of row i is row rows[c][i] of sources[c], so
+     * columns read from the same set can share one array of row ids. The batch is hashed a column at a time
+     * before any row is looked up, and rows already in the DataSet are never appended.
+     * @return the number of rows that were added
+     */
+    public int appendRows(Column[] sources, int[][] rows, int count) {
+        return appendRows(sources, rows, count, null);
+    }
+
+    /**
+     * Same as appendRows above, and also tells where each row of the batch is in the DataSet.
+     * @param landed set to the row of the DataSet that is equal to row i of the batch, whether it was added or was
+     *               there already, or null
+     */
+    public int appendRows(Column[] sources, int[][] rows, int count, int[] landed) {
+        if (count == 0) {
+            return 0;
+        }
+        for (int col = 0; col < columns.length; col++) {
+            if (columns[col] == null) {
+                columns[col] = sources[col].emptyCopy();
+            }
+            else if (!columns[col].canAppendFrom(sources[col])) {
+                columns[col] = columns[col].widenFor(sources[col]);
+            }
+        }
+
+        int[] hashes = new int[count];
+        Arrays.fill(hashes, 1);
+        for (int col = 0; col < columns.length; col++) {
+            sources[col].hashRows(rows[col], count, hashes);
+        }
+
+        int added = 0;
+        for (int i = 0; i < count; i++) {
+            int hash = hashes[i];
+            int slot = mix(hash) & (slots.length - 1);
+            boolean duplicate = false;
+            while (slots[slot] != 0) {
+                int other = slots[slot] - 1;
+                if (rowHashes[other] == hash && rowEquals(other, sources, rows, i)) {
+                    duplicate = true;
+                    if (landed != null) {
+                        landed[i] = other;
+                    }
+                    break;
+                }
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            if (duplicate) { continue; }
+
+            int row = size;
+            if (landed != null) {
+                landed[i] = row;
+            }
+            for (int col = 0; col < columns.length; col++) {
+                columns[col].appendFrom(sources[col], rows[col][i]);
+            }
+            slots[slot] = row + 1;
+            if (row == rowHashes.length) {
+                rowHashes = Arrays.copyOf(rowHashes, rowHashes.length * 2);
+            }
+            rowHashes[row] = hash;
+            size++;
+            added++;
+
+            if (size * 2 > slots.length) {
+                rehash(slots.length * 2);
+            }
+        }
+        return added;
+    }
+
+    private boolean rowEquals(int row, Column[] sources, int[][] rows, int index) {
+        for (int col = 0; col < columns.length; col++) {
+            if (!columns[col].equalsAt(row, sources[col], rows[col][index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the values that were just appended to the columns a row, unless an equal row already exists, in which
+     * case the values are removed again.
+     * @return true if the row was kept
+     */
+    private boolean commitRow() {
+        int row = size;
+        int hash = hashRow(row);
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+
+        while (slots[slot] != 0) {
+            int other = slots[slot] - 1;
+            if (rowHashes[other] == hash && rowsEqual(other, row)) {
+                for (Column column : columns) {
+                    column.truncate(row);
+                }
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        slots[slot] = row + 1;
+        if (row == rowHashes.length) {
+            rowHashes = Arrays.copyOf(rowHashes, rowHashes.length * 2);
+        }
+        rowHashes[row] = hash;
+        size++;
+
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int row = 0; row < size; row++) {
+            int slot = mix(rowHashes[row]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = row + 1;
+        }
+    }
+
+    private int hashRow(int row) {
+        int hash = 1;
+        for (Column column : columns) {
+            hash = 31 * hash + column.hashAt(row);
+        }
+        return hash;
+    }
+
+    private boolean rowsEqual(int a, int b) {
+        for (Column column : columns) {
+            if (!column.equalsAt(a, column, b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the bits of a hash so that similar hashes don't land in neighbouring slots.
+     */
+    public static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    /**
+     * Same as parseString, but reads the value straight from the parser's buffer.
+     * @param value a value from CSVParser.getField, or null if the value is empty
+     * @return an Integer, Double or String, or null for an empty value
+     */
+    public static Object parseField(CharSequence value) {
+        return value == null ? null : NumberParser.parseValue(value);
+    }
+
+    public static Object parseString(String value) {
+        return NumberParser.parseValue(value);
     }
 
 
@@ -87,9 +491,9 @@ public class DataSet {
         }
         builder.append("\n");
 
-        for (ArrayList<Object> row : data) {
-            for (Object item : row) {
-                builder.append(item + " ");
+        for (int row = 0; row < size; row++) {
+            for (Column column : columns) {
+                builder.append(column.get(row) + " ");
             }
             builder.append("\n");
         }
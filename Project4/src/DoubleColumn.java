@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+public class DoubleColumn extends Column {
+
+    private double[] values;
+
+    public DoubleColumn() {
+        values = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Wraps an array whose first 'size' entries are the column's values.
+     */
+    public DoubleColumn(double[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    public double getDouble(int row) {
+        return values[row];
+    }
+
+    /**
+     * @return the backing array, whose first size() entries are the column's values
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    public void appendDouble(double value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, grow(values.length, size + 1));
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    public Object get(int row) {
+        return values[row];
+    }
+
+    @Override
+    public int hashAt(int row) {
+        return Double.hashCode(values[row]);
+    }
+
+    @Override
+    public void hashRows(int[] rows, int count, int[] hashes) {
+        for (int i = 0; i < count; i++) {
+            hashes[i] = 31 * hashes[i] + Double.hashCode(values[rows[i]]);
+        }
+    }
+
+    @Override
+    public boolean equalsAt(int row, Column other, int otherRow) {
+        if (other instanceof DoubleColumn) {
+            return Double.doubleToLongBits(values[row]) == Double.doubleToLongBits(((DoubleColumn)other).values[otherRow]);
+        }
+        return valuesEqual(get(row), other.get(otherRow));
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+        return value instanceof Double;
+    }
+
+    @Override
+    public void append(Object value) {
+        appendDouble((Double)value);
+    }
+
+    @Override
+    public boolean canAppendFrom(Column source) {
+        return source instanceof DoubleColumn;
+    }
+
+    @Override
+    public void appendFrom(Column source, int row) {
+        appendDouble(((DoubleColumn)source).values[row]);
+    }
+
+    @Override
+    public Column emptyCopy() {
+        return new DoubleColumn();
+    }
+
+    @Override
+    public Column copy() {
+        DoubleColumn column = new DoubleColumn();
+        column.values = Arrays.copyOf(values, Math.max(size, INITIAL_CAPACITY));
+        column.size = size;
+        return column;
+    }
+}
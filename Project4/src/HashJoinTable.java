@@ -0,0 +1,218 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A hash table over the rows of a DataSet keyed on some of its columns, used as the build side of a hash join.
+ * Rows with equal keys are chained together so that a probe walks only the rows that can match.
+ */
+public class HashJoinTable {
+
+    private DataSet set;
+    private int[] keyColumns;
+
+    // buckets[b] and next[entry] hold entry + 1 of the next entry in a chain, 0 ends the chain.
+    private int[] buckets;
+    private int[] next;
+    private int[] hashes;
+
+    // The row of 'set' each entry stands for, or null when entry i is row i.
+    private int[] rows;
+
+    private BloomFilter bloomFilter = null;
+
+    /**
+     * Builds the table.
+     * @param set the build side
+     * @param keyColumns indices of the key columns in 'set'
+     */
+    public HashJoinTable(DataSet set, int[] keyColumns) {
+        this(set, keyColumns, (BitSet)null);
+    }
+
+    /**
+     * Builds the table over some rows of a set, so a filtered set doesn't have to be copied first.
+     * @param selected the rows of 'set' to put in the table, or null for every row
+     */
+    public HashJoinTable(DataSet set, int[] keyColumns, BitSet selected) {
+        this.set = set;
+        this.keyColumns = keyColumns;
+
+        int rows = set.size();
+        buckets = new int[bucketCount(rows)];
+        next = new int[rows];
+        hashes = new int[rows];
+        int mask = buckets.length - 1;
+
+        // Hash the keys in batches, a column at a time.
+        Column[] columns = new Column[keyColumns.length];
+        for (int k = 0; k < columns.length; k++) {
+            columns[k] = set.columns[keyColumns[k]];
+        }
+        int[] batch = new int[DataSet.BATCH_SIZE];
+        int[][] batchRows = new int[columns.length][];
+        Arrays.fill(batchRows, batch);
+        int[] batchHashes = new int[DataSet.BATCH_SIZE];
+        for (int start = 0; start < rows; start += batch.length) {
+            int count = Math.min(batch.length, rows - start);
+            for (int i = 0; i < count; i++) {
+                batch[i] = start + i;
+            }
+            hashKeys(columns, batchRows, count, batchHashes);
+            System.arraycopy(batchHashes, 0, hashes, start, count);
+        }
+
+        // Insert in reverse so each chain lists rows in row id order.
+        for (int row = rows - 1; row >= 0; row--) {
+            if (selected != null && !selected.get(row)) { continue; }
+            int bucket = DataSet.mix(hashes[row]) & mask;
+            next[row] = buckets[bucket];
+            buckets[bucket] = row + 1;
+        }
+    }
+
+    /**
+     * Builds the table over a list of rows whose keys are already hashed, such as one partition of a
+     * partitioned join. Entry i of the table is rows[i], see getRow.
+     * @param rowHashes rowHashes[i] is the hash of the key of rows[i], as hashKeys computes it
+     */
+    public HashJoinTable(DataSet set, int[] keyColumns, int[] rows, int[] rowHashes) {
+        this.set = set;
+        this.keyColumns = keyColumns;
+        this.rows = rows;
+
+        buckets = new int[bucketCount(rows.length)];
+        next = new int[rows.length];
+        hashes = rowHashes;
+        int mask = buckets.length - 1;
+        for (int entry = rows.length - 1; entry >= 0; entry--) {
+            int bucket = DataSet.mix(hashes[entry]) & mask;
+            next[entry] = buckets[bucket];
+            buckets[bucket] = entry + 1;
+        }
+    }
+
+    /**
+     * Rebuilds a table over every row of a set from the arrays of a table built before, such as an index written by
+     * an earlier run. See getArrays.
+     */
+    public HashJoinTable(DataSet set, int[] keyColumns, int[][] arrays) {
+        this.set = set;
+        this.keyColumns = keyColumns;
+        buckets = arrays[0];
+        next = arrays[1];
+        hashes = arrays[2];
+    }
+
+    /**
+     * @return the buckets, chains and hashes of a table over every row of its set, which only depend on the values
+     *         of its key columns, so they can be stored and used again while the set stays the same
+     */
+    public int[][] getArrays() {
+        return new int[][] {buckets, next, hashes};
+    }
+
+    private static int bucketCount(int rows) {
+        int count = 16;
+        while (count < rows) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return an estimate of the bytes a table over 'rows' rows takes, used to pick the side to build
+     */
+    public static long estimateMemory(int rows) {
+        return (long)bucketCount(rows) * Integer.BYTES + (long)rows * 2 * Integer.BYTES;
+    }
+
+    /**
+     * Hashes a batch of keys spread over several sets: value k of key i is probeColumns[k] at probeRows[k][i].
+     * Each key hashes the same as an equal key of the table. The batch is hashed a column at a time.
+     */
+    public static void hashKeys(Column[] probeColumns, int[][] probeRows, int count, int[] hashes) {
+        Arrays.fill(hashes, 0, count, 1);
+        for (int k = 0; k < probeColumns.length; k++) {
+            probeColumns[k].hashRows(probeRows[k], count, hashes);
+        }
+    }
+
+    /**
+     * @return a Bloom filter of the hashes of the keys in the table, built the first time it is asked for. A key
+     *         hashed by hashKeys that the filter rejects matches no entry.
+     */
+    public synchronized BloomFilter getBloomFilter() {
+        if (bloomFilter == null) {
+            BloomFilter filter = new BloomFilter(next.length);
+            addKeysTo(filter);
+            bloomFilter = filter;
+        }
+        return bloomFilter;
+    }
+
+    /**
+     * Adds the hashes of the keys in the table to a Bloom filter.
+     */
+    public void addKeysTo(BloomFilter filter) {
+        // Only entries in a chain are in the table, a table over selected rows skips the others.
+        for (int link : buckets) {
+            for (; link != 0; link = next[link - 1]) {
+                filter.add(hashes[link - 1]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries the table has room for, which is at least the number of rows in it
+     */
+    public int size() {
+        return next.length;
+    }
+
+    public DataSet getSet() {
+        return set;
+    }
+
+    /**
+     * @return the row of the set that an entry returned by firstMatch or nextMatch stands for
+     */
+    public int getRow(int entry) {
+        return rows == null ? entry : rows[entry];
+    }
+
+    /**
+     * Probes with key i of a batch hashed by hashKeys.
+     * @return the first entry of the table whose key equals the probe key, or -1 if there is none
+     */
+    public int firstMatch(int hash, Column[] probeColumns, int[][] probeRows, int index) {
+        return findFrom(buckets[DataSet.mix(hash) & (buckets.length - 1)], hash, probeColumns, probeRows, index);
+    }
+
+    /**
+     * @param previous an entry returned by firstMatch or nextMatch for the same probe key
+     * @return the next entry of the table whose key equals the probe key, or -1 if there is none
+     */
+    public int nextMatch(int previous, Column[] probeColumns, int[][] probeRows, int index) {
+        return findFrom(next[previous], hashes[previous], probeColumns, probeRows, index);
+    }
+
+    private int findFrom(int link, int hash, Column[] probeColumns, int[][] probeRows, int index) {
+        while (link != 0) {
+            int entry = link - 1;
+            if (hashes[entry] == hash && keyEquals(getRow(entry), probeColumns, probeRows, index)) {
+                return entry;
+            }
+            link = next[entry];
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int row, Column[] probeColumns, int[][] probeRows, int index) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (!set.columns[keyColumns[i]].equalsAt(row, probeColumns[i], probeRows[i][index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
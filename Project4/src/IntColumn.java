@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+public class IntColumn extends Column {
+
+    private int[] values;
+
+    public IntColumn() {
+        values = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Wraps an array whose first 'size' entries are the column's values.
+     */
+    public IntColumn(int[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    public int getInt(int row) {
+        return values[row];
+    }
+
+    /**
+     * @return the backing array, whose first size() entries are the column's values
+     */
+    public int[] getValues() {
+        return values;
+    }
+
+    public void appendInt(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, grow(values.length, size + 1));
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    public Object get(int row) {
+        return values[row];
+    }
+
+    @Override
+    public int hashAt(int row) {
+        return Long.hashCode(values[row]);
+    }
+
+    @Override
+    public void hashRows(int[] rows, int count, int[] hashes) {
+        for (int i = 0; i < count; i++) {
+            hashes[i] = 31 * hashes[i] + Long.hashCode(values[rows[i]]);
+        }
+    }
+
+    @Override
+    public boolean equalsAt(int row, Column other, int otherRow) {
+        if (other instanceof IntColumn) {
+            return values[row] == ((IntColumn)other).values[otherRow];
+        }
+        return valuesEqual(get(row), other.get(otherRow));
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+        return value instanceof Integer;
+    }
+
+    @Override
+    public void append(Object value) {
+        appendInt((Integer)value);
+    }
+
+    @Override
+    public boolean canAppendFrom(Column source) {
+        return source instanceof IntColumn;
+    }
+
+    @Override
+    public void appendFrom(Column source, int row) {
+        appendInt(((IntColumn)source).values[row]);
+    }
+
+    @Override
+    public Column emptyCopy() {
+        return new IntColumn();
+    }
+
+    @Override
+    public Column copy() {
+        IntColumn column = new IntColumn();
+        column.values = Arrays.copyOf(values, Math.max(size, INITIAL_CAPACITY));
+        column.size = size;
+        return column;
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedPeekableCharacterFileStream extends PeekableCharacterFileStream {
+
+    // A single MappedByteBuffer is limited to 2 GB, so larger files are mapped as several chunks.
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer[] chunks;
+    private long position;
+    private long end;
+
+    // Records that start at or after this offset are left for another reader.
+    private long recordLimit = Long.MAX_VALUE;
+
+    public MappedPeekableCharacterFileStream(String filePath) throws IOException {
+        file = new RandomAccessFile(filePath, "r");
+        FileChannel channel = file.getChannel();
+        long size = channel.size();
+
+        chunks = new MappedByteBuffer[(int)((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            long chunkStart = (long)i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(CHUNK_SIZE, size - chunkStart));
+        }
+
+        position = 0;
+        end = size;
+    }
+
+    /**
+     * Creates a stream over bytes [start, end) of an already mapped file. The mapping is shared with 'source',
+     * so several ranges of one file can be read at the same time.
+     * @param source stream that owns the mapping
+     * @param start offset of the first byte of the range
+     * @param end offset one past the last byte of the range
+     * @param firstRow row number of the first byte of the range, used for error positions
+     */
+    public MappedPeekableCharacterFileStream(MappedPeekableCharacterFileStream source, long start, long end, int firstRow) {
+        file = null;
+        chunks = source.chunks;
+        position = start;
+        this.end = end;
+        currentRowIndex = firstRow;
+    }
+
+    /**
+     * Stops CSVParser from reading records that start at or after 'limit', while a record that starts before it is
+     * still read to its end. A chunk of a file can then be read to the first record boundary past its end without
+     * knowing where that boundary is.
+     */
+    public void setRecordLimit(long limit) {
+        recordLimit = limit;
+    }
+
+    @Override
+    public boolean pastRecordLimit() {
+        return position >= recordLimit;
+    }
+
+    /**
+     * Reads a byte without moving the stream.
+     * @param index absolute offset into the file
+     * @return the byte at 'index', or -1 if it is past the end of the stream
+     */
+    public int byteAt(long index) {
+        if (index >= end) {
+            return -1;
+        }
+        return chunks[(int)(index >>> CHUNK_SHIFT)].get((int)(index & CHUNK_MASK)) & 0xFF;
+    }
+
+    /**
+     * @return the absolute offset of the next character in the file
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the absolute offset one past the last character of the stream
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    @Override
+    public boolean moreAvailable() {
+        return position < end;
+    }
+
+    @Override
+    public int peekNextChar() {
+        return byteAt(position);
+    }
+
+    @Override
+    public int peekAheadChar(int ahead) {
+        if (ahead < 0) {
+            return -1;
+        }
+        return byteAt(position + ahead);
+    }
+
+    @Override
+    public int getNextChar() {
+        int c = byteAt(position);
+        if (c != -1) {
+            position++;
+        }
+        advancePosition(c);
+        return c;
+    }
+
+    /**
+     * Closes the file. The mapped chunks are released once they are garbage collected.
+     */
+    @Override
+    public void close() {
+        if (file == null) {
+            return; // ranges don't own the file
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.IOError;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,6 +15,8 @@ public class NRDatalog{
     private String datalogFile = null;
     private boolean argumentError = false;
     private int threadCount = 1;
+    private long joinMemory = 0;
+    private ArrayList<String> indexes = new ArrayList<String>();
     
     public NRDatalog(String [] args){
         boolean ShowHelp = false;
@@ -23,6 +26,10 @@ public class NRDatalog{
         Options.put("--datapath", "-d");
         Options.put("-h", "-h");
         Options.put("--help", "-h");
+        Options.put("-i","-i");
+        Options.put("-j","-j");
+        Options.put("--joinmemory","-j");
+        Options.put("--index","-i");
         Options.put("-m","-m");
         Options.put("--multithread","-m");
         Options.put("-n","-n");
@@ -60,6 +67,27 @@ public class NRDatalog{
                                 break;
                     case "-h":  ShowHelp = true;
                                 break;
+                    case "-i":  if(Index + 1 >= args.length || args[Index + 1].indexOf('.') <= 0){
+                                    System.out.println("Syntax Error: No fact column specified as \"fact.column\"");
+                                    ShowHelp = true;
+                                    break;
+                                }
+                                Index++;
+                                indexes.add(args[Index]);
+                                break;
+                    case "-j":  if(joinMemory != 0){
+                                    System.out.println("Syntax Error: Multiple join memory budgets defined.");
+                                    ShowHelp = true;
+                                    break;
+                                }
+                                if(Index + 1 >= args.length){
+                                    System.out.println("Syntax Error: No join memory budget specified");
+                                    ShowHelp = true;
+                                    break;
+                                }
+                                Index++;
+                                joinMemory = Long.parseLong(args[Index]);
+                                break;
                     case "-m":  if(threadCount != 1){
                                     System.out.println("Syntax Error: Multiple thread counts defined.");
                                     ShowHelp = true;
@@ -121,6 +149,14 @@ public class NRDatalog{
         return threadCount;
     }
 
+    public long getJoinMemory(){
+        return joinMemory;
+    }
+
+    public ArrayList<String> getIndexes(){
+        return indexes;
+    }
+
     public boolean getNoExecute(){
         return noExecute;
     }
@@ -152,11 +188,13 @@ public class NRDatalog{
     public void showHelp(){
         System.out.println(String.join(System.getProperty("line.separator"),
         "OVERVIEW: Non-Recursive Datalog",
-        "USAGE: NRDatalog [-d data] [-h] [-m cnt] [-n] [-p] [-t] [-v] file",
+        "USAGE: NRDatalog [-d data] [-h] [-i fact.col] [-j mb] [-m cnt] [-n] [-p] [-t] [-v] file",
         "",
         "OPTIONS:",
         "  -d (--datapath)    Specify the data directory",
         "  -h (--help)        Display this help message",
+        "  -i (--index)       Index a fact's column, may be repeated",
+        "  -j (--joinmemory)  Megabytes a join's hash table may take before it sorts instead",
         "  -m (--multithread) Specify the number of threads to use",
         "  -n (--noexecute)   Only validate the query, do not execute",
         "  -p (--parsedtree)  Output the parsed query as a tree",
@@ -177,6 +215,13 @@ public class NRDatalog{
             
             MyExecutionTree.setDataPath(DatalogOptions.getDataPath());
             MyExecutionTree.setVerbose(DatalogOptions.getVerbose());            
+            if(DatalogOptions.getJoinMemory() > 0){
+                MyExecutionTree.setJoinMemoryBudget(DatalogOptions.getJoinMemory() * 1024 * 1024);
+            }
+            for(String Index : DatalogOptions.getIndexes()){
+                int Dot = Index.lastIndexOf('.');
+                MyExecutionTree.addIndex(Index.substring(0, Dot), Index.substring(Dot + 1));
+            }
             if(MyExecutionTree.parseQuery()){
                 if(DatalogOptions.getParseTreeOutput()){
                     MyExecutionTree.outputParseTree(System.out);
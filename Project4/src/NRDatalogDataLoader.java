@@ -1,16 +1,51 @@
 import javax.xml.crypto.Data;
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntPredicate;
 
 public class NRDatalogDataLoader {
 
+    // Fact files at least this large are memory mapped instead of read through a buffer.
+    private static final long MAPPED_FILE_THRESHOLD = 64L * 1024 * 1024;
+
+    // Fact files at least this large are split across the worker threads when more than one thread is allowed.
+    private static final long PARALLEL_FILE_THRESHOLD = 256L * 1024;
+
+    // Hash joins with a side of at least this many rows are built and probed across the worker threads.
+    static final int PARALLEL_JOIN_THRESHOLD = 64 * 1024;
+
     private String dataPath;
+    private int threadCount = 1;
+    private ForkJoinPool joinPool = null;
+
+    // Joins whose hash table would take more than this many bytes sort their build side instead.
+    private long joinMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    // Rules are computed on several threads when multithreading is enabled.
+    private ConcurrentHashMap<String, DataSet> dataSets = new ConcurrentHashMap<>();
+
+    // Columns to index for each fact, and the indexes built when the fact was loaded.
+    private HashMap<String, ArrayList<String>> indexedColumns = new HashMap<>();
+    private ConcurrentHashMap<String, FactIndexes> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * The indexes of one loaded fact, by column position. They are only valid for the set they were built over.
+     */
+    private static class FactIndexes {
+        private final DataSet set;
+        private final HashMap<Integer, HashJoinTable> hashIndexes = new HashMap<>();
+        private final HashMap<Integer, SortedIndex> sortedIndexes = new HashMap<>();
 
-    private HashMap<String, DataSet> dataSets = new HashMap<>();
+        FactIndexes(DataSet set) {
+            this.set = set;
+        }
+    }
 
     public NRDatalogDataLoader(String dataPath) {
         this.dataPath = dataPath;
@@ -24,208 +59,329 @@ public class NRDatalogDataLoader {
         this.dataPath = dataPath;
     }
 
-    public void loadData(String fact) throws IOException {
-        CSVParser parser = new CSVParser(new PeekableCharacterFileStream(dataPath+"/"+fact+".csv"));
-        dataSets.put(fact, new DataSet(parser));
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+        joinPool = threadCount > 1 ? new ForkJoinPool(threadCount) : null;
     }
 
-    public boolean contains(String ruleName) {
-        return dataSets.keySet().contains(ruleName);
+    /**
+     * @return the pool joins split their work over, or null when only one thread is allowed
+     */
+    public ForkJoinPool getJoinPool() {
+        return joinPool;
     }
 
-    public ArrayList<String> getSetColumns(String rule) {
-        return dataSets.get(rule).orderedHeaders;
+    public long getJoinMemoryBudget() {
+        return joinMemoryBudget;
     }
 
-    public DataSet getSet(String rule) { return dataSets.get(rule); }
-
-    public void addSet(String rule, DataSet set) {
-        dataSets.put(rule, set);
+    public void setJoinMemoryBudget(long joinMemoryBudget) {
+        this.joinMemoryBudget = joinMemoryBudget;
     }
 
-    public DataSet select(String rule, ArrayList<Object> columns) {
-        DataSet sourceSet = dataSets.get(rule);
-        ArrayList<String> newColumns = new ArrayList<>();
-        for (Object col : columns) {
-            if (col.toString().equals("_")) { continue; }
-            newColumns.add(col.toString());
-        }
-
-        HashSet<ArrayList<Object>> modifiedSet = new HashSet<>();
-
-        for (ArrayList<Object> row : sourceSet.data) {
-            ArrayList<Object> newRow = new ArrayList<>();
-            for (String col : newColumns) {
-                if (!col.equals("_")) {
-                    newRow.add(row.get(columns.indexOf(col)));
-                }
-            }
-            modifiedSet.add(newRow);
-        }
-
-        return new DataSet(newColumns, modifiedSet);
+    /**
+     * Asks for a fact's column to be indexed whenever the fact is loaded. Every such column gets a hash index, and
+     * numeric columns also get a sorted index. Indexes are written next to the fact's snapshot so later runs can read
+     * them instead of building them.
+     */
+    public void addIndex(String fact, String column) {
+        indexedColumns.computeIfAbsent(fact, k -> new ArrayList<>()).add(column);
     }
 
-    public void setDataSet(String ruleName, HashSet<ArrayList<Object>> data) {
-        dataSets.get(ruleName).data = data;
+    public void loadData(String fact) throws IOException {
+        loadData(fact, null);
     }
 
-    public DataSet select(DataSet set, ArrayList<String> columns) {
-        ArrayList<String> newColumns = new ArrayList<>();
-        for (Object col : columns) {
-            if (col.toString().equals("_")) { continue; }
-            newColumns.add(col.toString());
+    /**
+     * Loads a fact, only reading the columns at the given positions. The other columns keep their header but
+     * hold null in every row.
+     * @param fact name of the fact, which is also the name of its csv file
+     * @param neededColumns positions of the columns to read, or null to read all of them
+     */
+    public void loadData(String fact, Set<Integer> neededColumns) throws IOException {
+        String filePath = dataPath+"/"+fact+".csv";
+        boolean[] selectedColumns = toColumnMask(neededColumns);
+        File file = new File(filePath);
+        long length = file.length();
+        long modified = file.lastModified();
+        boolean indexed = indexedColumns.containsKey(fact);
+
+        // Indexes are kept over the whole snapshot, so an indexed fact reads all of it and projects it here.
+        DataSet full = null;
+        DataSet set = ColumnarCache.read(filePath, indexed ? null : selectedColumns);
+        if (indexed) {
+            full = set;
+        }
+        if (set == null) {
+            if (ColumnarCache.canWrite(filePath)) {
+                // The snapshot has every column, so that later runs can read any of them from it.
+                full = parse(filePath, null);
+                ColumnarCache.write(filePath, length, modified, full);
+            }
+            else {
+                set = parse(filePath, selectedColumns);
+            }
+        }
+        int[] rowOf = null;
+        if (full != null) {
+            if (selectedColumns == null) {
+                set = full;
+            }
+            else {
+                rowOf = new int[full.size()];
+                set = DataSet.fromColumns(full.orderedHeaders, full.columns, full.size(), selectedColumns, rowOf);
+            }
+        }
+        if (indexed) {
+            indexes.put(fact, buildIndexes(fact, filePath, length, modified, full, set, rowOf, selectedColumns));
         }
+        dataSets.put(fact, set);
+    }
 
-        HashSet<ArrayList<Object>> modifiedSet = new HashSet<>();
+    /**
+     * Reads or builds the indexes asked for with addIndex. Indexes are built over every row of the fact's snapshot
+     * and stored next to it once per column, then carried over to the rows of the set the fact was loaded as.
+     * Without a snapshot they are built over the set and not stored.
+     * @param full the whole snapshot, or null if there is none
+     * @param rowOf the row of 'set' that each row of 'full' became, or null if 'set' is 'full'
+     */
+    private FactIndexes buildIndexes(String fact, String filePath, long length, long modified, DataSet full,
+                                     DataSet set, int[] rowOf, boolean[] selectedColumns) {
+        FactIndexes factIndexes = new FactIndexes(set);
+        DataSet source = full != null ? full : set;
+        boolean canWrite = full != null && ColumnarCache.canWrite(filePath);
+        for (String header : indexedColumns.get(fact)) {
+            Integer col = set.headers.get(header);
+            if (col == null) {
+                throw new IllegalArgumentException("Unknown column \""+header+"\" to index in \""+fact+"\".");
+            }
+            if (set.size() == 0 || (selectedColumns != null && (col >= selectedColumns.length || !selectedColumns[col]))) {
+                continue; // nothing to index, or no rule reads the column
+            }
 
-        for (ArrayList<Object> row : set.data) {
-            ArrayList<Object> newRow = new ArrayList<>();
-            for (String col : newColumns) {
-                if (!col.equals("_")) {
-                    newRow.add(row.get(columns.indexOf(col)));
+            String name = col + ".all";
+            int size = source.size();
+            int[] keyColumns = {col};
+            int[][] arrays = full != null ? ColumnarCache.readArrays(filePath, name + ".hash") : null;
+            HashJoinTable hashIndex;
+            if (arrays != null && arrays.length == 3 && arrays[1].length == size && arrays[2].length == size) {
+                hashIndex = new HashJoinTable(source, keyColumns, arrays);
+            }
+            else {
+                hashIndex = new HashJoinTable(source, keyColumns);
+                if (canWrite) {
+                    ColumnarCache.writeArrays(filePath, name + ".hash", length, modified, hashIndex.getArrays());
+                }
+            }
+            if (rowOf != null) {
+                // Equal rows of the snapshot become one row of the set and have equal keys, so their hashes carry over.
+                int[] hashes = hashIndex.getArrays()[2];
+                int[] setRows = new int[set.size()];
+                int[] setHashes = new int[set.size()];
+                for (int row = 0; row < size; row++) {
+                    setRows[rowOf[row]] = rowOf[row];
+                    setHashes[rowOf[row]] = hashes[row];
+                }
+                hashIndex = new HashJoinTable(set, keyColumns, setRows, setHashes);
+            }
+            factIndexes.hashIndexes.put(col, hashIndex);
+
+            Column column = source.columns[col];
+            if (SortedIndex.canIndex(column)) {
+                arrays = full != null ? ColumnarCache.readArrays(filePath, name + ".sorted") : null;
+                int[] order;
+                if (arrays != null && arrays.length == 1 && arrays[0].length == size) {
+                    order = arrays[0];
+                }
+                else {
+                    order = new SortedIndex(column, size).getRows();
+                    if (canWrite) {
+                        ColumnarCache.writeArrays(filePath, name + ".sorted", length, modified, new int[][] {order});
+                    }
+                }
+                if (rowOf != null) {
+                    // Keeping the first time each row of the set comes up keeps the order sorted.
+                    boolean[] seen = new boolean[set.size()];
+                    int[] setOrder = new int[set.size()];
+                    int count = 0;
+                    for (int row : order) {
+                        if (!seen[rowOf[row]]) {
+                            seen[rowOf[row]] = true;
+                            setOrder[count++] = rowOf[row];
+                        }
+                    }
+                    order = setOrder;
                 }
+                factIndexes.sortedIndexes.put(col, new SortedIndex(set.columns[col], order));
             }
-            modifiedSet.add(newRow);
         }
-
-        return new DataSet(newColumns, modifiedSet);
+        return factIndexes;
     }
 
-    public DataSet cartesianProd(DataSet A, DataSet B) {
-        ArrayList<String> resultHeaders = new ArrayList<>(A.orderedHeaders);
-        resultHeaders.addAll(B.orderedHeaders);
-
-        HashSet<ArrayList<Object>> data = new HashSet<>();
-        for (ArrayList<Object> rowA : A.data) {
-            for (ArrayList<Object> rowB : B.data) {
-                ArrayList<Object> newRow = new ArrayList<>(rowA);
-                newRow.addAll(rowB);
-                data.add(newRow);
-            }
+    /**
+     * @return the hash index on a column of a loaded fact, or null if there is none for the set now stored as 'fact'
+     */
+    public HashJoinTable getHashIndex(String fact, int column) {
+        FactIndexes factIndexes = indexes.get(fact);
+        if (factIndexes == null || factIndexes.set != dataSets.get(fact)) {
+            return null;
         }
-        return new DataSet(resultHeaders, data);
+        return factIndexes.hashIndexes.get(column);
     }
 
-    public DataSet naturalJoin(DataSet A, DataSet B) {
-        ArrayList<String> commonColumns = new ArrayList<>();
-        HashMap<String, Integer> AHeaders = A.headers;
-        HashMap<String, Integer> BHeaders = B.headers;
-        ArrayList<String> ResultHeaders = new ArrayList<>(A.orderedHeaders);
+    /**
+     * @return the sorted index on a column of a loaded fact, or null if there is none for the set now stored as 'fact'
+     */
+    public SortedIndex getSortedIndex(String fact, int column) {
+        FactIndexes factIndexes = indexes.get(fact);
+        if (factIndexes == null || factIndexes.set != dataSets.get(fact)) {
+            return null;
+        }
+        return factIndexes.sortedIndexes.get(column);
+    }
 
+    /**
+     * Parses a fact file, on the worker threads if it is large enough.
+     */
+    private DataSet parse(String filePath, boolean[] selectedColumns) throws IOException {
+        if (threadCount > 1 && new File(filePath).length() >= PARALLEL_FILE_THRESHOLD) {
+            return new ParallelCSVLoader(threadCount).load(filePath, selectedColumns);
+        }
 
-        // Start collecting common columns.
-        for (Map.Entry entry : AHeaders.entrySet()) {
-            if (BHeaders.containsKey(entry.getKey())) {
-                commonColumns.add((String)entry.getKey());
-            }
+        PeekableCharacterFileStream stream = openStream(filePath);
+        try {
+            CSVParser parser = new CSVParser(stream);
+            parser.setSelectedColumns(selectedColumns);
+            return new DataSet(parser);
         }
+        finally {
+            stream.close();
+        }
+    }
 
-        for (String key : BHeaders.keySet()) {
-            if (!ResultHeaders.contains(key)) {
-                ResultHeaders.add(key);
-            }
+    private static boolean[] toColumnMask(Set<Integer> columns) {
+        if (columns == null) {
+            return null;
+        }
+        int size = 0;
+        for (Integer col : columns) {
+            size = Math.max(size, col + 1);
         }
+        boolean[] mask = new boolean[size];
+        for (Integer col : columns) {
+            mask[col] = true;
+        }
+        return mask;
+    }
 
-        // Collect Valid Entries
-        HashSet<ArrayList<Object>> validEntriesOfB = new HashSet<>();
-        for (ArrayList<Object> rowB : B.data) {
-            ArrayList<Object> newEntry = new ArrayList<>();
-            for (String col : commonColumns) {
-                newEntry.add(rowB.get(B.headers.get(col)));
-            }
-            validEntriesOfB.add(newEntry);
+    /**
+     * Opens a fact file, memory mapping it if it is large enough that copying it through a buffer would dominate.
+     * @param filePath path of the file to open
+     * @return a stream over the file
+     */
+    private PeekableCharacterFileStream openStream(String filePath) throws IOException {
+        if (new File(filePath).length() >= MAPPED_FILE_THRESHOLD) {
+            return new MappedPeekableCharacterFileStream(filePath);
         }
+        return new PeekableCharacterFileStream(filePath);
+    }
 
-        // Start appending valid rows to set.
-        HashSet<ArrayList<Object>> newSetData = new HashSet<>();
+    public boolean contains(String ruleName) {
+        return dataSets.keySet().contains(ruleName);
+    }
 
-        for (ArrayList<Object> rowA : A.data) {
-            // Get entries of common columns
-            ArrayList<Object> entriesOfCommonCol_A = new ArrayList<>();
-            for (String col : commonColumns) {
-                entriesOfCommonCol_A.add(rowA.get(A.headers.get(col)));
-            }
+    public ArrayList<String> getSetColumns(String rule) {
+        return dataSets.get(rule).orderedHeaders;
+    }
 
-            // if that entry is in valid entry
-            if (validEntriesOfB.contains(entriesOfCommonCol_A)) {
-                for (ArrayList<Object> rowB : B.data) {
-                    ArrayList<Object> entriesOfCommonCol_B = new ArrayList<>();
-                    for (String col : commonColumns) {
-                        entriesOfCommonCol_B.add(rowB.get(B.headers.get(col)));
-                    }
-                    if (entriesOfCommonCol_B.equals(entriesOfCommonCol_A)) {
-                        ArrayList<Object> newRow = new ArrayList<>(rowA);
-                        for (String key : ResultHeaders) {
-                            if (BHeaders.keySet().contains(key) && !AHeaders.keySet().contains(key)) {
-                                newRow.add(rowB.get(BHeaders.get(key)));
-                            }
-                        }
-                        newSetData.add(newRow);
-                    }
-                }
-            }
-        }
+    public DataSet getSet(String rule) { return dataSets.get(rule); }
 
-        return new DataSet(ResultHeaders, newSetData);
+    public void addSet(String rule, DataSet set) {
+        dataSets.put(rule, set);
     }
 
-    public DataSet union(DataSet A, DataSet B) {
-        HashSet<ArrayList<Object>> unionedData = new HashSet<>(A.data);
-        ArrayList<String> headers = new ArrayList<>(A.orderedHeaders);
-
-        for (ArrayList<Object> arr : B.data) {
-            unionedData.add(new ArrayList<>(arr));
-        }
+    public DataSet select(String rule, ArrayList<Object> columns) {
+        return select(dataSets.get(rule), columns);
+    }
 
-        return new DataSet(headers, unionedData);
+    /**
+     * Projects a DataSet onto the named columns, dropping columns named "_". 'columns' names every column of 'set'
+     * by position.
+     */
+    public DataSet select(DataSet set, ArrayList<?> columns) {
+        return select(set, columns, null);
     }
 
-    public DataSet reorder(ArrayList<String> orderedHeaders, DataSet A) {
-        HashMap<String, Integer> oldHeaders = A.headers;
+    /**
+     * Same as select, but only keeps the rows of 'set' that pass 'rowFilter', so filtered rows are never copied.
+     * @param rowFilter tests a row id of 'set', or null to keep every row
+     */
+    public DataSet select(DataSet set, ArrayList<?> columns, IntPredicate rowFilter) {
+        ArrayList<String> newColumns = new ArrayList<>();
+        for (Object col : columns) {
+            if (col.toString().equals("_")) { continue; }
+            newColumns.add(col.toString());
+        }
 
-        HashSet<ArrayList<Object>> updatedSet = new HashSet<>();
+        int[] sourceIndex = new int[newColumns.size()];
+        boolean keepsEveryColumn = newColumns.size() == set.columns.length;
+        for (int i = 0; i < sourceIndex.length; i++) {
+            sourceIndex[i] = columns.indexOf(newColumns.get(i));
+            keepsEveryColumn &= sourceIndex[i] == i;
+        }
 
-        for (ArrayList<Object> row : A.data) {
-            ArrayList<Object> arr = new ArrayList<>();
-            for (String header : orderedHeaders) {
-                arr.add(row.get(oldHeaders.get(header)));
-            }
-            updatedSet.add(arr);
+        // Nothing is dropped, so the rows are already distinct.
+        if (keepsEveryColumn && rowFilter == null) {
+            return set.renamed(newColumns);
         }
 
-        return new DataSet(orderedHeaders, updatedSet);
+        return project(set, newColumns, sourceIndex, rowFilter);
     }
 
-    public DataSet difference(DataSet A, DataSet B) {
-        HashSet<ArrayList<Object>> differenceData = new HashSet<>(A.data);
-        ArrayList<String> BHeaders = B.orderedHeaders;
-
-        for (ArrayList<Object> rowA : A.data) {
-            for (ArrayList<Object> rowB : B.data) {
-                boolean shouldRemove = true;
-                for (String header : BHeaders) {
-                    if (!rowA.get(A.headers.get(header)).equals(rowB.get(B.headers.get(header)))) {
-                        shouldRemove = false;
-                        break;
-                    }
-                }
-                if (shouldRemove) {
-                    differenceData.remove(rowA);
-                }
+    /**
+     * @return a DataSet whose column i is column sourceIndex[i] of 'set', holding the rows that pass 'rowFilter'
+     */
+    private DataSet project(DataSet set, ArrayList<String> headers, int[] sourceIndex, IntPredicate rowFilter) {
+        Column[] sources = new Column[sourceIndex.length];
+        for (int i = 0; i < sourceIndex.length; i++) {
+            sources[i] = set.columns[sourceIndex[i]];
+        }
+
+        DataSet result = new DataSet(headers, sources);
+        int[] batch = new int[DataSet.BATCH_SIZE];
+        int[][] rows = new int[sources.length][];
+        Arrays.fill(rows, batch);
+        int count = 0;
+        for (int row = 0; row < set.size(); row++) {
+            if (rowFilter != null && !rowFilter.test(row)) { continue; }
+            batch[count++] = row;
+            if (count == batch.length) {
+                result.appendRows(sources, rows, count);
+                count = 0;
             }
         }
+        result.appendRows(sources, rows, count);
+        return result;
+    }
 
-        return new DataSet(A.orderedHeaders, differenceData);
+    public DataSet union(DataSet A, DataSet B) {
+        DataSet unioned = A.renamed(new ArrayList<>(A.orderedHeaders));
+        unioned.addAll(B);
+        return unioned;
     }
 
-    public boolean hasColumnsInCommon(ArrayList<String> headers_A, ArrayList<String> headers_B) {
-        for (String c : headers_A) {
-            if (headers_B.contains(c)) {
-                return true;
-            }
+    /**
+     * Checks that hashing on equal values gives the same answer as the "=" relation would for two columns.
+     * The relation compares numbers by value across types and fails on strings against numbers, while a hash key
+     * only matches values of the same kind, so only columns of the same kind can be joined on a relation.
+     */
+    public static boolean canJoinOnEquality(Column a, Column b) {
+        if (a == null || b == null) {
+            return true; // an empty side joins to nothing either way
         }
-        return false;
+        return (a instanceof IntColumn && b instanceof IntColumn) ||
+               (a instanceof DoubleColumn && b instanceof DoubleColumn) ||
+               (a instanceof StringColumn && b instanceof StringColumn);
     }
 
     public static void main(String[] args) throws IOException {
@@ -236,32 +392,7 @@ public class NRDatalogDataLoader {
 
         DataSet A = loader.dataSets.get("Names");
         DataSet B = loader.dataSets.get("People");
-        ArrayList<String> arr = new ArrayList<>();
-        arr.add("c");
-        arr.add("a");
-        arr.add("b");
-//        System.out.println("Testing reordering...");
-//        System.out.println(loader.reorder(arr, A));
-
-//        System.out.println("Testing Cartesian product...");
-//        System.out.println(loader.cartesianProd(A,B));
-
-//        System.out.println("Testing Natural Join");
-//        System.out.println(loader.naturalJoin(A,B));
-
 //        System.out.println("Testing union");
 //        System.out.println(loader.union(A,B));
-/*
-        System.out.println("Testing difference..");
-        ArrayList<String> selectCols = new ArrayList<>();
-        selectCols.add("name");
-        selectCols.add("a");
-        selectCols.add("_");
-        ArrayList<String> selectCols2 = new ArrayList<>();
-        selectCols2.add("_");
-        selectCols2.add("a");
-        selectCols2.add("_");
-        System.out.println(loader.difference(loader.select(B,selectCols),loader.select(A, selectCols2)));
- */
     }
 }
@@ -1,9 +1,18 @@
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 public class NRDatalogExecutionTree extends NRDatalogParseTree {
 
@@ -40,17 +49,7 @@ public class NRDatalogExecutionTree extends NRDatalogParseTree {
         }
 
         public Object parseString(String value) {
-            try {
-                return Integer.parseInt(value);
-            }
-            catch (NumberFormatException e) {
-                try {
-                    return Double.parseDouble(value);
-                }
-                catch (NumberFormatException e2) {
-                    return value;
-                }
-            }
+            return DataSet.parseString(value);
         }
     }
 
@@ -415,11 +414,28 @@ public class NRDatalogExecutionTree extends NRDatalogParseTree {
 
     public void setVerbose(boolean verb) { verbose = verb; }
 
-    public void setThreadCount(int threadcount) { threadCount = threadcount; }
+    public void setThreadCount(int threadcount) {
+        threadCount = threadcount;
+        loader.setThreadCount(threadcount);
+    }
 
     public void setDataPath(String datapath) { loader.setDataPath(datapath); }
 
+    /**
+     * Sets the bytes a join's hash table may take before the join sorts instead, see BodyPipeline.mergeIndex.
+     */
+    public void setJoinMemoryBudget(long bytes) { loader.setJoinMemoryBudget(bytes); }
+
+    /**
+     * Indexes a column of a fact when it is loaded, see NRDatalogDataLoader.addIndex.
+     */
+    public void addIndex(String fact, String column) { loader.addIndex(fact, column); }
+
     public boolean executeQuery() throws IOException {
+        if (threadCount > 1) {
+            return executeQueryInParallel();
+        }
+
         ArrayList<ExecutionNode> rules = executionTree.Children;
         DataSet last = null;
         String lastRuleName = "";
@@ -450,149 +466,949 @@ public class NRDatalogExecutionTree extends NRDatalogParseTree {
         return true;
     }
 
+    /**
+     * Runs the rules on a pool of threadCount workers. Each rule is started as soon as every rule it invokes has
+     * been computed, so independent rules (and independent definitions of the same rule) run at the same time.
+     * The definitions of a rule are unioned in the order they are written once they have all finished.
+     */
+    private boolean executeQueryInParallel() throws IOException {
+        ArrayList<ExecutionNode> rules = executionTree.Children;
+        HashMap<String, CompletableFuture<DataSet>> computedRules = new HashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        String lastRuleName = "";
+
+        try {
+            int index = 0;
+            while (index < rules.size()) {
+                String ruleName = rules.get(index).Children.get(0).name;
+                ArrayList<CompletableFuture<DataSet>> definitions = new ArrayList<>();
+
+                // Definitions of the same rule are contiguous.
+                while (index < rules.size() && rules.get(index).Children.get(0).name.equals(ruleName)) {
+                    ExecutionNode rule = rules.get(index++);
+                    definitions.add(CompletableFuture.allOf(getDependencies(rule, computedRules))
+                            .thenApplyAsync(ignored -> executeRule(rule), pool));
+                }
+
+                computedRules.put(ruleName, CompletableFuture.allOf(definitions.toArray(new CompletableFuture<?>[0]))
+                        .thenApply(ignored -> {
+                            DataSet result = definitions.get(0).join();
+                            for (int i = 1; i < definitions.size(); i++) {
+                                result = loader.union(result, definitions.get(i).join());
+                            }
+                            loader.addSet(ruleName, result);
+                            return result;
+                        }));
+                lastRuleName = ruleName;
+            }
+
+            DataSet last = computedRules.get(lastRuleName).join();
+            System.out.println("Results \""+lastRuleName+"\"");
+            System.out.println(last);
+            return true;
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw e;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the computations of the rules that 'rule' invokes
+     */
+    private CompletableFuture<?>[] getDependencies(ExecutionNode rule, HashMap<String, CompletableFuture<DataSet>> computedRules) {
+        ArrayList<CompletableFuture<DataSet>> dependencies = new ArrayList<>();
+        if (rule.Children.size() > 1) {
+            for (ExecutionNode subGoal : rule.Children.get(1).Children) {
+                if (computedRules.containsKey(subGoal.name)) {
+                    dependencies.add(computedRules.get(subGoal.name));
+                }
+            }
+        }
+        return dependencies.toArray(new CompletableFuture<?>[0]);
+    }
+
+    /**
+     * Computes one definition of a rule without unioning it into the rule's other definitions.
+     */
+    private DataSet executeRule(ExecutionNode rule) {
+        try {
+            if (rule.Children.size() == 1) { // rule is a fact
+                return executeFact(rule);
+            }
+            return executeBody(rule);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public DataSet executeBody(ExecutionNode rule) {
         ArrayList<Object> finalColumns = rule.Children.get(0).LeafChildren;
 
-        DataSet temporarySet = null;
-        for (ExecutionNode subGoal : rule.Children.get(1).Children) {
-            ArrayList<Object> columns = subGoal.LeafChildren;
-            String setName = subGoal.name;
-            if (temporarySet == null) {
-                temporarySet = loader.select(setName, columns);
+        HashMap<ExecutionNode, SubGoalPlanner.Goal> goals = new HashMap<>();
+        ArrayList<ExecutionNode> plan = planSubGoals(rule, goals);
+
+        // Relations over the variables of a single invocation are checked while that invocation is scanned,
+        // so rows that fail them are never copied or joined.
+        HashMap<ExecutionNode, ArrayList<ExecutionNode>> pushedDown = new HashMap<>();
+        HashSet<ExecutionNode> applied = new HashSet<>();
+        for (ExecutionNode relation : plan) {
+            SubGoalPlanner.Goal relationGoal = goals.get(relation);
+            if (relationGoal.kind != SubGoalPlanner.Kind.RELATION || relationGoal.variables.isEmpty()) { continue; }
+            for (ExecutionNode invocation : plan) {
+                SubGoalPlanner.Goal invocationGoal = goals.get(invocation);
+                if (invocationGoal.kind == SubGoalPlanner.Kind.INVOCATION &&
+                    invocationGoal.variables.containsAll(relationGoal.variables)) {
+                    pushedDown.computeIfAbsent(invocation, k -> new ArrayList<>()).add(relation);
+                    applied.add(relation);
+                }
+            }
+        }
+
+        // The body runs as one pipeline; only hash tables, deduplicated projections and the result are stored.
+        BodyPipeline pipeline = new BodyPipeline(plan.size());
+        pipeline.setOrderHint(joinVariables(plan, goals));
+        ArrayList<ExecutionNode> waiting = new ArrayList<>();
+        for (ExecutionNode subGoal : plan) {
+            if (applied.contains(subGoal)) { continue; }
+
+            if (subGoal.rule.equals("RULE_INVOCATION")) {
+                // An equality between a bound variable and a variable of this invocation becomes a join key.
+                ArrayList<String> keysA = new ArrayList<>();
+                ArrayList<String> keysB = new ArrayList<>();
+                for (ExecutionNode relation : plan) {
+                    if (applied.contains(relation) || !SubGoalPlanner.isVariableEquality(goals.get(relation))) { continue; }
+                    String left = (String)relation.LeafChildren.get(0);
+                    String right = (String)relation.LeafChildren.get(1);
+                    if (!pipeline.isBound(left)) {
+                        String swap = left;
+                        left = right;
+                        right = swap;
+                    }
+                    if (pipeline.isBound(left) && !pipeline.isBound(right) && subGoal.LeafChildren.contains(right) &&
+                        NRDatalogDataLoader.canJoinOnEquality(pipeline.columnOf(left), column(subGoal, right))) {
+                        keysA.add(left);
+                        keysB.add(right);
+                        applied.add(relation);
+                    }
+                }
+                // So can a comparison between a bound variable and a variable of this invocation.
+                ArrayList<ExecutionNode> comparisons = new ArrayList<>();
+                for (ExecutionNode relation : plan) {
+                    if (!applied.contains(relation) && SubGoalPlanner.isVariableComparison(goals.get(relation))) {
+                        comparisons.add(relation);
+                    }
+                }
+
+                // Variables the head or another subgoal still reads, other than through those comparisons.
+                HashSet<String> neededLater = new HashSet<>(stringList(finalColumns));
+                for (ExecutionNode other : plan) {
+                    if (other != subGoal && !applied.contains(other) && !comparisons.contains(other)) {
+                        neededLater.addAll(goals.get(other).variables);
+                    }
+                }
+
+                // Relations the planner put right after this invocation can be checked as its pairs are formed.
+                ArrayList<ExecutionNode> following = new ArrayList<>();
+                HashSet<String> boundAfter = new HashSet<>(goals.get(subGoal).variables);
+                boundAfter.addAll(pipeline.variables);
+                for (int i = plan.indexOf(subGoal) + 1; i < plan.size(); i++) {
+                    ExecutionNode next = plan.get(i);
+                    if (applied.contains(next)) { continue; }
+                    SubGoalPlanner.Goal nextGoal = goals.get(next);
+                    if (nextGoal.kind != SubGoalPlanner.Kind.RELATION || !boundAfter.containsAll(nextGoal.variables)) {
+                        break;
+                    }
+                    following.add(next);
+                }
+
+                applied.addAll(pipeline.join(subGoal, pushedDown.get(subGoal), keysA, keysB, comparisons,
+                                             neededLater, following));
+
+                // Subgoals the planner put before the first invocation can run once it is read.
+                for (ExecutionNode waitingGoal : waiting) {
+                    pipeline.addSubGoal(waitingGoal);
+                }
+                waiting.clear();
+            }
+            else if (!pipeline.hasSource()) {
+                waiting.add(subGoal);
             }
             else {
-                if (subGoal.rule.equals("NEGATED_RULE_INVOCATION")) {
-                    DataSet tempSet2 = loader.select(setName, columns);
-                    temporarySet = loader.difference(temporarySet, tempSet2);
+                pipeline.addSubGoal(subGoal);
+            }
+        }
+
+        ArrayList<String> headHeaders = new ArrayList<>();
+        for (Object column : finalColumns) {
+            headHeaders.add(column.toString());
+        }
+        return pipeline.collect(headHeaders);
+    }
+
+    /**
+     * @return the variables of the first invocation of a plan that the second one joins on, either by sharing them
+     *         or through an equality or comparison between two variables
+     */
+    private HashSet<String> joinVariables(ArrayList<ExecutionNode> plan, HashMap<ExecutionNode, SubGoalPlanner.Goal> goals) {
+        HashSet<String> joinVariables = new HashSet<>();
+        ArrayList<SubGoalPlanner.Goal> invocations = new ArrayList<>();
+        for (ExecutionNode subGoal : plan) {
+            if (goals.get(subGoal).kind == SubGoalPlanner.Kind.INVOCATION) {
+                invocations.add(goals.get(subGoal));
+            }
+        }
+        if (invocations.size() < 2) {
+            return joinVariables;
+        }
+
+        HashSet<String> first = invocations.get(0).variables;
+        HashSet<String> second = invocations.get(1).variables;
+        for (String variable : first) {
+            if (second.contains(variable)) {
+                joinVariables.add(variable);
+            }
+        }
+        for (ExecutionNode subGoal : plan) {
+            SubGoalPlanner.Goal goal = goals.get(subGoal);
+            if (!SubGoalPlanner.isVariableEquality(goal) && !SubGoalPlanner.isVariableComparison(goal)) { continue; }
+            if (first.contains(goal.left) && second.contains(goal.right)) {
+                joinVariables.add((String)goal.left);
+            }
+            if (first.contains(goal.right) && second.contains(goal.left)) {
+                joinVariables.add((String)goal.right);
+            }
+        }
+        return joinVariables;
+    }
+
+    /**
+     * A rule body being turned into a chain of PipelineOperators. Every positive invocation is read as one source
+     * of the pipeline, and each variable is read from the first source that binds it.
+     */
+    private class BodyPipeline {
+        private final int maxSources;
+        private int sourceCount = 0;
+        private PipelineOperator last = null;
+
+        // The scan of the first source, which drops rows that can't match later hash joins.
+        private PipelineOperator.Scan scan = null;
+        private int scanSource = -1;
+        private int scanRows = 0;
+
+        // Bound variables, the column each one is read from, and the source that column belongs to.
+        private final ArrayList<String> variables = new ArrayList<>();
+        private final ArrayList<Column> columns = new ArrayList<>();
+        private final ArrayList<Integer> sources = new ArrayList<>();
+
+        // Variables the first source would best be read in the order of, and the variable the tuples are in
+        // ascending order of, if any.
+        private HashSet<String> orderHint = new HashSet<>();
+        private String sortedBy = null;
+
+        BodyPipeline(int maxSources) {
+            this.maxSources = maxSources;
+        }
+
+        void setOrderHint(HashSet<String> orderHint) {
+            this.orderHint = orderHint;
+        }
+
+        boolean hasSource() {
+            return last != null;
+        }
+
+        boolean isBound(String variable) {
+            return variables.contains(variable);
+        }
+
+        /**
+         * @return the column a bound variable is read from
+         */
+        Column columnOf(String variable) {
+            return columns.get(variables.indexOf(variable));
+        }
+
+        /**
+         * Adds a positive invocation, either as the first scan or as a join on the variables it shares with the
+         * pipeline and on its variables 'keysB' being equal to the bound variables 'keysA'. Equality joins probe a
+         * hash table, or merge with a sorted index when one is known to be sorted or the hash table would be too
+         * large. Without equalities, one of 'comparisons' can join the invocation instead of a cross product. If
+         * nothing else reads the variables the invocation binds, either join only checks that a matching row exists
+         * and the tuples aren't widened. A cross
+         * product that remains checks 'following' while it pairs tuples with rows.
+         * @param relations relations that only use variables of the invocation, or null
+         * @param comparisons relations "x op y" between two variables that haven't been applied
+         * @param neededLater variables read by the head or by subgoals after this one, other than 'comparisons'
+         * @param following relations that come right after the invocation and can be checked once it is joined
+         * @return the relations the join applied, which mustn't be added again
+         */
+        ArrayList<ExecutionNode> join(ExecutionNode invocation, ArrayList<ExecutionNode> relations,
+                                      ArrayList<String> keysA, ArrayList<String> keysB,
+                                      ArrayList<ExecutionNode> comparisons, HashSet<String> neededLater,
+                                      ArrayList<ExecutionNode> following) {
+            int source = sourceCount++;
+            DataSet base = loader.getSet(invocation.name);
+            DataSet set;
+            ArrayList<String> setVariables;
+            BitSet selected = null;
+            if (readsEveryColumn(invocation, base)) {
+                // Rows of the fact or rule are already distinct, so they can be read in place.
+                set = base;
+                setVariables = stringList(invocation.LeafChildren);
+                if (relations != null && base.size() > 0) {
+                    selected = selectRows(invocation, relations, base);
                 }
-                else if (subGoal.rule.equals("RULE_INVOCATION")) {
-                    DataSet tempSet2 = loader.select(setName, columns);
+            }
+            else {
+                // Dropping columns can make rows equal, so the projection is deduplicated before it is read.
+                set = scan(invocation, relations);
+                setVariables = set.orderedHeaders;
+            }
 
-                    if (loader.hasColumnsInCommon(temporarySet.orderedHeaders, tempSet2.orderedHeaders)) {
-                        temporarySet = loader.naturalJoin(temporarySet, tempSet2);
+            ArrayList<Column> probeColumns = new ArrayList<>();
+            ArrayList<Integer> probeSources = new ArrayList<>();
+            ArrayList<Integer> keyColumns = new ArrayList<>();
+            if (last != null) {
+                for (String variable : setVariables) {
+                    if (isBound(variable) && !keyColumns.contains(setVariables.indexOf(variable))) {
+                        addKey(variable, setVariables.indexOf(variable), probeColumns, probeSources, keyColumns);
+                    }
+                }
+                for (int i = 0; i < keysA.size(); i++) {
+                    addKey(keysA.get(i), setVariables.indexOf(keysB.get(i)), probeColumns, probeSources, keyColumns);
+                }
+            }
+
+            ArrayList<ExecutionNode> joinedOn = new ArrayList<>();
+            boolean existenceOnly = false;
+            if (last == null) {
+                // Reading a fact in the order of a sorted index lets the joins after it merge instead of search.
+                int[] order = null;
+                for (String variable : orderHint) {
+                    SortedIndex index = set == base && setVariables.contains(variable) ?
+                            loader.getSortedIndex(invocation.name, setVariables.indexOf(variable)) : null;
+                    if (index != null) {
+                        order = index.getRows();
+                        sortedBy = variable;
+                        break;
+                    }
+                }
+                last = scan = new PipelineOperator.Scan(maxSources, source, set, selected, order);
+                scanSource = source;
+                scanRows = set.size();
+            }
+            else if (keyColumns.isEmpty()) {
+                PipelineOperator join = null;
+                for (ExecutionNode comparison : comparisons) {
+                    HashSet<String> needed = new HashSet<>(neededLater);
+                    for (ExecutionNode other : comparisons) {
+                        if (other != comparison) {
+                            needed.addAll(stringList(other.LeafChildren));
+                        }
+                    }
+                    existenceOnly = Collections.disjoint(needed, setVariables);
+                    join = comparisonJoin(invocation, source, set, base, setVariables, selected, comparison, existenceOnly);
+                    if (join != null) {
+                        joinedOn.add(comparison);
+                        break;
+                    }
+                }
+                if (join == null) {
+                    existenceOnly = false;
+                    if (following.isEmpty() || set.size() == 0) {
+                        join = new PipelineOperator.CrossProduct(last, source, set, selected);
                     }
                     else {
-                        temporarySet = loader.cartesianProd(temporarySet, tempSet2);
+                        join = filteredCrossProduct(source, set, setVariables, selected, following);
+                        joinedOn.addAll(following);
+                        // It pairs tuples a block at a time, which doesn't keep them in the order they came in.
+                        sortedBy = null;
+                    }
+                }
+                last = join;
+            }
+            else {
+                // An invocation whose new variables nothing reads only filters the tuples, as a semi-join.
+                HashSet<String> needed = new HashSet<>(neededLater);
+                for (ExecutionNode comparison : comparisons) {
+                    needed.addAll(stringList(comparison.LeafChildren));
+                }
+                existenceOnly = true;
+                for (String variable : setVariables) {
+                    if (!isBound(variable) && needed.contains(variable)) {
+                        existenceOnly = false;
                     }
                 }
+                equalityJoin(invocation, source, set, base, selected, keyColumns, probeColumns, probeSources,
+                             existenceOnly);
+            }
+
+            for (int i = 0; i < setVariables.size() && !existenceOnly; i++) {
+                if (!isBound(setVariables.get(i))) {
+                    variables.add(setVariables.get(i));
+                    columns.add(set.columns[i]);
+                    sources.add(source);
+                }
+            }
+            return joinedOn;
+        }
+
+        /**
+         * Joins the pipeline with the rows of 'set' whose key columns equal the probe columns. Hash joins with a
+         * large side are built and probed in partitions on the loader's join pool.
+         * @param existenceOnly true to keep each tuple once if any row matches instead of pairing it with every row
+         */
+        private void equalityJoin(ExecutionNode invocation, int source, DataSet set, DataSet base, BitSet selected,
+                                  ArrayList<Integer> keyColumns, ArrayList<Column> probeColumns,
+                                  ArrayList<Integer> probeSources, boolean existenceOnly) {
+            SortedIndex mergeIndex = keyColumns.size() == 1 ?
+                    mergeIndex(invocation, set, base, keyColumns.get(0), probeColumns.get(0), selected) : null;
+            if (mergeIndex != null) {
+                // An index built for this join only holds the selected rows.
+                boolean ascending = sortedBy != null && columnOf(sortedBy) == probeColumns.get(0);
+                BitSet indexSelected = mergeIndex.size() == set.size() ? selected : null;
+                if (existenceOnly) {
+                    last = new PipelineOperator.MergeSemiJoin(last, mergeIndex, Operator.EQUAL, probeColumns.get(0),
+                            probeSources.get(0), ascending, indexSelected);
+                }
                 else {
-                    // do something with equality relations
-                    temporarySet = filter(temporarySet, subGoal);
+                    last = new PipelineOperator.MergeJoin(last, source, mergeIndex, Operator.EQUAL, probeColumns.get(0),
+                            probeSources.get(0), ascending, indexSelected);
+                }
+            }
+            else {
+                ForkJoinPool pool = loader.getJoinPool();
+                boolean parallel = pool != null &&
+                        Math.max(set.size(), scanRows) >= NRDatalogDataLoader.PARALLEL_JOIN_THRESHOLD;
+
+                // A fact read in place whole can be probed through its index on the key column.
+                HashJoinTable table = null;
+                if (set == base && selected == null && keyColumns.size() == 1) {
+                    table = loader.getHashIndex(invocation.name, keyColumns.get(0));
+                }
+                PartitionedHashJoin.Table partitioned;
+                if (table == null && parallel && set.size() >= NRDatalogDataLoader.PARALLEL_JOIN_THRESHOLD) {
+                    partitioned = new PartitionedHashJoin(pool).build(set, toArray(keyColumns), selected);
+                }
+                else {
+                    if (table == null) {
+                        table = new HashJoinTable(set, toArray(keyColumns), selected);
+                    }
+                    partitioned = new PartitionedHashJoin.Table(table);
+                }
+                // When the key is read from the first source, rows the table rejects are dropped as they are scanned.
+                if (scan != null && probeSources.stream().allMatch(s -> s == scanSource)) {
+                    scan.addBloomFilter(partitioned.getBloomFilter(), probeColumns.toArray(new Column[0]));
+                }
+                if (parallel) {
+                    last = new PipelineOperator.ParallelHashJoinProbe(last, source, partitioned,
+                            probeColumns.toArray(new Column[0]), toArray(probeSources), existenceOnly, pool);
+                }
+                else if (existenceOnly) {
+                    last = new PipelineOperator.SemiJoin(last, table, probeColumns.toArray(new Column[0]),
+                                                         toArray(probeSources));
+                }
+                else {
+                    last = new PipelineOperator.HashJoinProbe(last, source, table, probeColumns.toArray(new Column[0]),
+                                                              toArray(probeSources));
                 }
             }
         }
 
-        ArrayList<String> bodyHeaders = new ArrayList<>(temporarySet.orderedHeaders);
+        /**
+         * @return a cross product of the pipeline and an invocation that only passes on the pairs for which every
+         *         relation in 'relations' holds
+         */
+        private PipelineOperator filteredCrossProduct(int source, DataSet set, ArrayList<String> setVariables,
+                                                      BitSet selected, ArrayList<ExecutionNode> relations) {
+            // The relations read the variables of a pair like a Filter after the product would.
+            ArrayList<String> pairVariables = new ArrayList<>(variables);
+            ArrayList<Column> pairColumns = new ArrayList<>(columns);
+            ArrayList<Integer> pairSources = new ArrayList<>(sources);
+            for (int i = 0; i < setVariables.size(); i++) {
+                if (!isBound(setVariables.get(i))) {
+                    pairVariables.add(setVariables.get(i));
+                    pairColumns.add(set.columns[i]);
+                    pairSources.add(source);
+                }
+            }
+            Column[] columnArray = pairColumns.toArray(new Column[0]);
 
-        for (int i = 0; i < bodyHeaders.size(); i++) {
-            if (!finalColumns.contains(bodyHeaders.get(i))) {
-                bodyHeaders.set(i, "_");
+            PipelineOperator.FilteredCrossProduct.Conditions conditions = pairs -> {
+                int[][] rowIds = new int[pairSources.size()][];
+                for (int i = 0; i < rowIds.length; i++) {
+                    rowIds[i] = pairs[pairSources.get(i)];
+                }
+                CompiledExpression[] compiled = new CompiledExpression[relations.size()];
+                for (int i = 0; i < compiled.length; i++) {
+                    compiled[i] = compileRelation(relations.get(i), pairVariables, columnArray, rowIds);
+                }
+                return compiled;
+            };
+            return new PipelineOperator.FilteredCrossProduct(last, source, set, selected, conditions, loader.getJoinPool());
+        }
+
+        /**
+         * @return a sorted index to merge an equality join on one key column with, or null to hash join. A fact's
+         *         sorted index is used when the tuples come in key order or there is no hash index to probe, and
+         *         the build side is sorted for the join when its hash table wouldn't fit the memory budget.
+         */
+        private SortedIndex mergeIndex(ExecutionNode invocation, DataSet set, DataSet base, int keyColumn,
+                                       Column probeColumn, BitSet selected) {
+            if (set.size() == 0) {
+                return null;
+            }
+            // Sorting orders ints and doubles by value, which only agrees with hashing when both are the same type.
+            Column buildColumn = set.columns[keyColumn];
+            if (!SortedIndex.canIndex(buildColumn) || buildColumn.getClass() != probeColumn.getClass()) {
+                return null;
             }
+            SortedIndex index = set == base ? loader.getSortedIndex(invocation.name, keyColumn) : null;
+            if (index != null) {
+                boolean ascending = sortedBy != null && columnOf(sortedBy) == probeColumn;
+                if (ascending || loader.getHashIndex(invocation.name, keyColumn) == null) {
+                    return index;
+                }
+                return null;
+            }
+            if (HashJoinTable.estimateMemory(set.size()) > loader.getJoinMemoryBudget()) {
+                return selected == null ? new SortedIndex(buildColumn, set.size()) :
+                                          new SortedIndex(buildColumn, set.size(), selected);
+            }
+            return null;
         }
 
-        temporarySet = loader.select(temporarySet, bodyHeaders);
+        /**
+         * @return a join of the invocation on "x op y" between one of its variables and a bound variable, or null if
+         *         the comparison doesn't link the two or isn't between numbers. The invocation's column is sorted for
+         *         the join unless it is a fact's column with a sorted index.
+         * @param existenceOnly true to keep each tuple once if any row matches instead of pairing it with every row
+         */
+        private PipelineOperator comparisonJoin(ExecutionNode invocation, int source, DataSet set, DataSet base,
+                                                ArrayList<String> setVariables, BitSet selected, ExecutionNode relation,
+                                                boolean existenceOnly) {
+            if (set.size() == 0) {
+                return null;
+            }
+            String left = (String)relation.LeafChildren.get(0);
+            String right = (String)relation.LeafChildren.get(1);
+            int comparison = Operator.code(relation.rule);
+
+            // Turn the relation into "value op key", where the value is the invocation's and the key is bound.
+            String own;
+            String bound;
+            if (isBound(left) && setVariables.contains(right)) {
+                own = right;
+                bound = left;
+                comparison = Operator.mirror(comparison);
+            }
+            else if (isBound(right) && setVariables.contains(left)) {
+                own = left;
+                bound = right;
+            }
+            else {
+                return null;
+            }
 
-        return temporarySet;
-    }
+            int ownColumn = setVariables.indexOf(own);
+            Column probeColumn = columnOf(bound);
+            if (!SortedIndex.canIndex(set.columns[ownColumn]) || !SortedIndex.canIndex(probeColumn)) {
+                return null;
+            }
+            SortedIndex index = set == base ? loader.getSortedIndex(invocation.name, ownColumn) : null;
+            if (index == null) {
+                Column column = set.columns[ownColumn];
+                index = selected == null ? new SortedIndex(column, set.size()) : new SortedIndex(column, set.size(), selected);
+                selected = null;
+            }
+            int probeSource = sources.get(variables.indexOf(bound));
+            if (existenceOnly) {
+                return new PipelineOperator.MergeSemiJoin(last, index, comparison, probeColumn, probeSource,
+                                                          bound.equals(sortedBy), selected);
+            }
+            return new PipelineOperator.MergeJoin(last, source, index, comparison, probeColumn, probeSource,
+                                                  bound.equals(sortedBy), selected);
+        }
 
-    public DataSet filter(DataSet set, ExecutionNode relation) {
-        DataSet filteredData = new DataSet();
-        filteredData.orderedHeaders = set.orderedHeaders;
-        filteredData.data = new HashSet<>();
+        private void addKey(String variable, int buildColumn, ArrayList<Column> probeColumns,
+                            ArrayList<Integer> probeSources, ArrayList<Integer> keyColumns) {
+            int index = variables.indexOf(variable);
+            probeColumns.add(columns.get(index));
+            probeSources.add(sources.get(index));
+            keyColumns.add(buildColumn);
+        }
 
-        for (ArrayList<Object> row : set.data) {
-            if ((boolean)computeFilter(row, set.orderedHeaders, relation)) {
-                filteredData.data.add(row);
+        /**
+         * Adds a negated invocation or a relation whose variables are all bound.
+         */
+        void addSubGoal(ExecutionNode subGoal) {
+            if (subGoal.rule.equals("NEGATED_RULE_INVOCATION")) {
+                DataSet negated = loader.select(subGoal.name, subGoal.LeafChildren);
+                if (negated.size() == 0) {
+                    return; // nothing to remove
+                }
+                ArrayList<Column> probeColumns = new ArrayList<>();
+                ArrayList<Integer> probeSources = new ArrayList<>();
+                ArrayList<Integer> keyColumns = new ArrayList<>();
+                for (String variable : negated.orderedHeaders) {
+                    addKey(variable, negated.headers.get(variable), probeColumns, probeSources, keyColumns);
+                }
+                // A single string key whose codes come from the same dictionary on both sides is checked with a bitmap.
+                if (keyColumns.size() == 1 && probeColumns.get(0) instanceof StringColumn &&
+                        negated.columns[keyColumns.get(0)] instanceof StringColumn) {
+                    StringColumn probeColumn = (StringColumn)probeColumns.get(0);
+                    StringColumn negatedColumn = (StringColumn)negated.columns[keyColumns.get(0)];
+                    if (probeColumn.getDictionary() == negatedColumn.getDictionary()) {
+                        BitSet codes = new BitSet(negatedColumn.getDictionary().size());
+                        for (int row = 0; row < negated.size(); row++) {
+                            codes.set(negatedColumn.getCode(row));
+                        }
+                        last = new PipelineOperator.CodeAntiJoin(last, codes, probeColumn, probeSources.get(0));
+                        return;
+                    }
+                }
+                HashJoinTable table = new HashJoinTable(negated, toArray(keyColumns));
+                last = new PipelineOperator.AntiJoin(last, table, probeColumns.toArray(new Column[0]), toArray(probeSources));
+            }
+            else {
+                // The relation reads each variable through the row ids of its source in the batches of 'last'.
+                int[][] rowIds = new int[sources.size()][];
+                for (int i = 0; i < rowIds.length; i++) {
+                    rowIds[i] = last.getRows()[sources.get(i)];
+                }
+                last = new PipelineOperator.Filter(last, compileRelation(subGoal, variables,
+                        columns.toArray(new Column[0]), rowIds));
             }
         }
 
-        return filteredData;
+        /**
+         * Runs the pipeline, keeping the distinct values of the head's variables.
+         */
+        DataSet collect(ArrayList<String> headHeaders) {
+            Column[] headColumns = new Column[headHeaders.size()];
+            int[] headSources = new int[headColumns.length];
+            for (int i = 0; i < headColumns.length; i++) {
+                int index = variables.indexOf(headHeaders.get(i));
+                headColumns[i] = columns.get(index);
+                headSources[i] = sources.get(index);
+            }
+
+            DataSet result = new DataSet(headHeaders, headColumns);
+            int[][] headRows = new int[headColumns.length][];
+            for (int i = 0; i < headRows.length; i++) {
+                headRows[i] = last.getRows()[headSources[i]];
+            }
+            int count;
+            while ((count = last.next()) > 0) {
+                result.appendRows(headColumns, headRows, count);
+            }
+            return result;
+        }
     }
 
-    public Object computeFilter(ArrayList<Object> row, ArrayList<String> headers, ExecutionNode relation) {
-        Operator op = new Operator();
+    /**
+     * Selects the columns of an invocation, keeping only the rows that pass every relation in 'relations'.
+     * @param relations relations that only use variables of the invocation, or null
+     */
+    private DataSet scan(ExecutionNode invocation, ArrayList<ExecutionNode> relations) {
+        if (relations == null) {
+            return loader.select(invocation.name, invocation.LeafChildren);
+        }
+
+        DataSet source = loader.getSet(invocation.name);
+        if (source.size() == 0) {
+            return loader.select(source, invocation.LeafChildren);
+        }
 
-        Object leftResult = null;
-        Object rightResult = null;
+        return loader.select(source, invocation.LeafChildren, selectRows(invocation, relations, source)::get);
+    }
 
-        if (relation.LeafChildren.size() == 1) {
-            leftResult = relation.LeafChildren.get(0);
-            String operator = relation.rule;
-            if (leftResult instanceof Integer) {
-                return op.computeUnary(operator, (Integer)leftResult);
+    /**
+     * Finds the rows of an invoked set that pass relations over the invocation's variables. Leading relations that
+     * compare an indexed column of a fact to a constant are answered by the index, and the rest are only evaluated
+     * over the rows the index found.
+     */
+    private BitSet selectRows(ExecutionNode invocation, ArrayList<ExecutionNode> relations, DataSet set) {
+        BitSet candidates = null;
+        int indexed = 0;
+        while (indexed < relations.size()) {
+            BitSet rows = indexLookup(invocation, relations.get(indexed), set);
+            if (rows == null) {
+                break;
             }
-            else if (leftResult instanceof Double) {
-                return op.computeUnary(operator, (Double)leftResult);
-            }
-            else if (leftResult instanceof Boolean) {
-                return op.computeUnary(operator, (Boolean)leftResult == true ? 1 : 0);
+            if (candidates == null) {
+                candidates = rows;
             }
             else {
-                if (headers.indexOf(leftResult) == -1) {
-                    throw new ArithmeticException("INVALID UNARY VALUE");
-                }
-                else {
-                    Object value = row.get(headers.indexOf(leftResult));
-                    return op.computeUnary(operator, value);
-                }
+                candidates.and(rows);
             }
+            indexed++;
+        }
+        if (indexed == relations.size()) {
+            return candidates;
+        }
+
+        List<ExecutionNode> remaining = relations.subList(indexed, relations.size());
+        return selectRows(set.size(), compileRelations(remaining, invocation.LeafChildren, set.columns), candidates);
+    }
+
+    /**
+     * @return the rows for which a relation "variable op constant" or "constant op variable" holds, found with an
+     *         index of the invoked fact, or null if no index can answer it
+     */
+    private BitSet indexLookup(ExecutionNode invocation, ExecutionNode relation, DataSet set) {
+        int comparison = Operator.code(relation.rule);
+        if (relation.LeafChildren.size() != 2 || !Operator.isComparison(comparison) || comparison == Operator.NOT_EQUAL) {
+            return null;
+        }
+        Object left = relation.LeafChildren.get(0);
+        Object right = relation.LeafChildren.get(1);
+        if (left instanceof ExecutionNode || right instanceof ExecutionNode) {
+            return null;
+        }
 
+        // Leaves that name a variable of the invocation read its column, like compileOperand.
+        int col = invocation.LeafChildren.indexOf(left);
+        Object constant = right;
+        if (invocation.LeafChildren.indexOf(right) != -1) {
+            if (col != -1) {
+                return null;
+            }
+            col = invocation.LeafChildren.indexOf(right);
+            constant = left;
+            comparison = Operator.mirror(comparison);
+        }
+        if (col == -1) {
+            return null;
         }
 
-        Object leftChild = relation.LeafChildren.get(0);
-        Object rightChild = relation.LeafChildren.get(1);
+        // Hashing only finds values of the same type, while numbers compare equal across types.
+        Column column = set.columns[col];
+        HashJoinTable hashIndex = loader.getHashIndex(invocation.name, col);
+        if (comparison == Operator.EQUAL && hashIndex != null &&
+            ((column instanceof StringColumn && constant instanceof String) ||
+             (column instanceof IntColumn && constant instanceof Integer) ||
+             (column instanceof DoubleColumn && constant instanceof Double))) {
+            ObjectColumn probe = new ObjectColumn();
+            probe.append(constant);
+            Column[] probeColumns = { probe };
+            int[][] probeRows = { { 0 } };
+            int[] hash = new int[1];
+            HashJoinTable.hashKeys(probeColumns, probeRows, 1, hash);
+
+            BitSet rows = new BitSet();
+            for (int entry = hashIndex.firstMatch(hash[0], probeColumns, probeRows, 0); entry >= 0;
+                 entry = hashIndex.nextMatch(entry, probeColumns, probeRows, 0)) {
+                rows.set(hashIndex.getRow(entry));
+            }
+            return rows;
+        }
 
-        if (leftChild instanceof ExecutionNode) {
-            leftResult = computeFilter(row, headers, (ExecutionNode)leftChild);
+        SortedIndex sortedIndex = loader.getSortedIndex(invocation.name, col);
+        if (sortedIndex != null && (constant instanceof Integer || constant instanceof Double)) {
+            return sortedIndex.select(comparison, ((Number)constant).doubleValue());
         }
-        else {
-            leftResult = leftChild;
+        return null;
+    }
+
+    private CompiledExpression[] compileRelations(List<ExecutionNode> relations, List<?> headers, Column[] columns) {
+        CompiledExpression[] conditions = new CompiledExpression[relations.size()];
+        for (int i = 0; i < conditions.length; i++) {
+            conditions[i] = compileRelation(relations.get(i), headers, columns, null);
         }
+        return conditions;
+    }
+
+    /**
+     * @return the column an invocation binds 'variable' to, or null if the invoked set is empty
+     */
+    private Column column(ExecutionNode invocation, String variable) {
+        DataSet set = loader.getSet(invocation.name);
+        return set.columns == null ? null : set.columns[invocation.LeafChildren.indexOf(variable)];
+    }
 
-        if (rightChild instanceof ExecutionNode) {
-            rightResult = computeFilter(row, headers, (ExecutionNode)rightChild);
+    /**
+     * @return true if an invocation names every column of the invoked set once, so selecting it drops nothing
+     */
+    private boolean readsEveryColumn(ExecutionNode invocation, DataSet set) {
+        HashSet<Object> names = new HashSet<>(invocation.LeafChildren);
+        return !names.contains("_") && names.size() == invocation.LeafChildren.size() &&
+               names.size() == set.orderedHeaders.size();
+    }
+
+    private static ArrayList<String> stringList(ArrayList<Object> values) {
+        ArrayList<String> strings = new ArrayList<>();
+        for (Object value : values) {
+            strings.add(value.toString());
         }
-        else {
-            rightResult = rightChild;
+        return strings;
+    }
+
+    private static int[] toArray(ArrayList<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
         }
+        return array;
+    }
 
-        if (headers.indexOf(leftResult) != -1) {
-            leftResult = row.get(headers.indexOf(leftResult));
+    /**
+     * Orders the subgoals of a rule body by estimated cost using the sizes of the sets they invoke.
+     * @param goals filled with the planner's description of each subgoal
+     * @return the subgoals in the order they should be executed
+     */
+    private ArrayList<ExecutionNode> planSubGoals(ExecutionNode rule, HashMap<ExecutionNode, SubGoalPlanner.Goal> goals) {
+        ArrayList<ExecutionNode> subGoals = rule.Children.get(1).Children;
+        HashSet<String> bodyVariables = new HashSet<>();
+        for (ExecutionNode subGoal : subGoals) {
+            if (subGoal.rule.equals("RULE_INVOCATION")) {
+                for (Object column : subGoal.LeafChildren) {
+                    if (!column.equals("_")) {
+                        bodyVariables.add(column.toString());
+                    }
+                }
+            }
         }
 
-        if (headers.indexOf(rightResult) != -1) {
-            rightResult = row.get(headers.indexOf(rightResult));
+        ArrayList<SubGoalPlanner.Goal> planned = new ArrayList<>();
+        for (ExecutionNode subGoal : subGoals) {
+            SubGoalPlanner.Goal goal;
+            if (subGoal.rule.equals("RULE_INVOCATION") || subGoal.rule.equals("NEGATED_RULE_INVOCATION")) {
+                boolean negated = subGoal.rule.equals("NEGATED_RULE_INVOCATION");
+                goal = new SubGoalPlanner.Goal(negated ? SubGoalPlanner.Kind.NEGATION : SubGoalPlanner.Kind.INVOCATION);
+                DataSet set = loader.getSet(subGoal.name);
+                goal.rows = set.size();
+                for (int i = 0; i < subGoal.LeafChildren.size(); i++) {
+                    String column = subGoal.LeafChildren.get(i).toString();
+                    if (column.equals("_")) { continue; }
+                    goal.variables.add(column);
+                    if (!negated) {
+                        goal.distinct.put(column, (double)set.estimateDistinct(i));
+                    }
+                }
+            }
+            else {
+                goal = new SubGoalPlanner.Goal(SubGoalPlanner.Kind.RELATION);
+                goal.operator = subGoal.rule;
+                collectVariables(subGoal, bodyVariables, goal.variables);
+                if (subGoal.LeafChildren.size() == 2) {
+                    goal.left = subGoal.LeafChildren.get(0) instanceof ExecutionNode ? null : subGoal.LeafChildren.get(0);
+                    goal.right = subGoal.LeafChildren.get(1) instanceof ExecutionNode ? null : subGoal.LeafChildren.get(1);
+                }
+            }
+            planned.add(goal);
+            goals.put(subGoal, goal);
         }
 
-        // Convert booleans to 1 or 0.
-        if (leftResult instanceof Boolean) {
-            leftResult = (Boolean)leftResult == true ? 1 : 0;
+        ArrayList<ExecutionNode> ordered = new ArrayList<>();
+        for (int index : new SubGoalPlanner().order(planned)) {
+            ordered.add(subGoals.get(index));
         }
+        return ordered;
+    }
 
-        if (rightResult instanceof Boolean) {
-            rightResult = (Boolean)rightResult == true ? 1 : 0;
+    /**
+     * Adds the variables used by a relation to 'variables'. Leaves that aren't body variables are constants.
+     */
+    private void collectVariables(ExecutionNode relation, HashSet<String> bodyVariables, HashSet<String> variables) {
+        for (Object leaf : relation.LeafChildren) {
+            if (leaf instanceof ExecutionNode) {
+                collectVariables((ExecutionNode)leaf, bodyVariables, variables);
+            }
+            else if (bodyVariables.contains(leaf)) {
+                variables.add((String)leaf);
+            }
         }
+    }
 
-        // Now that we dealt with booleans, compute values
-        if (leftResult instanceof Double || rightResult instanceof Double) {
-            return op.compute(relation.rule, Double.valueOf(leftResult.toString()), Double.valueOf(rightResult.toString()));
+    /**
+     * Evaluates compiled relations over the rows of a set a batch at a time. Within a batch the relations run one
+     * after another, each only looking at the rows that passed the ones before it.
+     * @param candidates if not null, only these rows are evaluated and can pass
+     * @return the rows that pass every relation
+     */
+    private BitSet selectRows(int size, CompiledExpression[] conditions, BitSet candidates) {
+        long[] selection = new long[(size + 63) >>> 6];
+        long[] batch = new long[DataSet.BATCH_SIZE / 64];
+        long[] candidateWords = candidates == null ? null : candidates.toLongArray();
+        for (int start = 0; start < size; start += DataSet.BATCH_SIZE) {
+            int count = Math.min(DataSet.BATCH_SIZE, size - start);
+            int words = (count + 63) >>> 6;
+            if (candidateWords != null) {
+                int first = start >>> 6;
+                int available = Math.min(words, candidateWords.length - first);
+                if (available <= 0) {
+                    break; // no candidates from here on
+                }
+                System.arraycopy(candidateWords, first, batch, 0, available);
+                Arrays.fill(batch, available, words, 0L);
+                if (candidates.nextSetBit(start) >= start + count) {
+                    continue; // no candidates in this batch
+                }
+            }
+            else {
+                Arrays.fill(batch, 0, words, -1L);
+                if (count % 64 != 0) {
+                    batch[words - 1] = (1L << count) - 1; // shifts only use the low 6 bits of 'count'
+                }
+            }
+            for (CompiledExpression condition : conditions) {
+                condition.select(start, count, batch);
+            }
+            System.arraycopy(batch, 0, selection, start >>> 6, words);
         }
-        else if (leftResult instanceof Integer && rightResult instanceof Integer) {
-            return op.compute(relation.rule, (Integer)leftResult, (Integer)rightResult);
+        return BitSet.valueOf(selection);
+    }
+
+    /**
+     * Compiles a relation against the columns of a set. Leaves that name a header read that column, and every
+     * other leaf is a constant.
+     * @param headers names of 'columns' by position
+     * @param rowIds if not null, column i is read at row rowIds[i][r] when row r is evaluated
+     */
+    public CompiledExpression compileRelation(ExecutionNode relation, List<?> headers, Column[] columns, int[][] rowIds) {
+        if (relation.LeafChildren.size() == 1) {
+            Object operand = relation.LeafChildren.get(0);
+            if (operand instanceof Integer || operand instanceof Double || operand instanceof Boolean) {
+                return CompiledExpression.unary(relation.rule, CompiledExpression.constant(operand));
+            }
+            if (headers.indexOf(operand) == -1) {
+                return CompiledExpression.invalid("INVALID UNARY VALUE");
+            }
+            return CompiledExpression.unary(relation.rule, compileOperand(operand, headers, columns, rowIds));
         }
-        else if ((leftResult instanceof String && !(rightResult instanceof String)) || (!(leftResult instanceof String) && (rightResult instanceof String))){
-            throw new ArithmeticException("Can't operate on a string and non-string");
+
+        return CompiledExpression.binary(relation.rule,
+                compileOperand(relation.LeafChildren.get(0), headers, columns, rowIds),
+                compileOperand(relation.LeafChildren.get(1), headers, columns, rowIds));
+    }
+
+    private CompiledExpression compileOperand(Object operand, List<?> headers, Column[] columns, int[][] rowIds) {
+        if (operand instanceof ExecutionNode) {
+            return compileRelation((ExecutionNode)operand, headers, columns, rowIds);
         }
-        else {
-            return op.compute(relation.rule, (String)leftResult, (String)rightResult);
+        int index = headers.indexOf(operand);
+        if (index != -1) {
+            return CompiledExpression.column(columns[index], rowIds == null ? null : rowIds[index]);
         }
+        return CompiledExpression.constant(operand);
     }
 
     public DataSet executeFact(ExecutionNode rule) throws IOException {
         String fact = rule.Children.get(0).name;
         ArrayList<Object> columns = rule.Children.get(0).LeafChildren;
 
-        loader.loadData(fact);
+        loader.loadData(fact, getNeededColumns(rule));
 
         ArrayList<String> sourceColumns = loader.getSetColumns(fact);
 
@@ -605,6 +1421,34 @@ public class NRDatalogExecutionTree extends NRDatalogParseTree {
         return loader.getSet(fact);
     }
 
+    /**
+     * Finds the columns of a fact that some rule actually reads, so the rest don't have to be loaded.
+     * @param fact the fact's rule
+     * @return positions of the columns bound to a variable by some invocation of the fact, or null if every column
+     *         is needed because the fact is the query's result
+     */
+    private HashSet<Integer> getNeededColumns(ExecutionNode fact) {
+        ArrayList<ExecutionNode> rules = executionTree.Children;
+        if (rules.get(rules.size() - 1) == fact) {
+            return null;
+        }
+
+        String factName = fact.Children.get(0).name;
+        HashSet<Integer> neededColumns = new HashSet<>();
+        for (ExecutionNode rule : rules) {
+            if (rule.Children.size() == 1) { continue; }
+            for (ExecutionNode subGoal : rule.Children.get(1).Children) {
+                if (!subGoal.name.equals(factName)) { continue; }
+                for (int i = 0; i < subGoal.LeafChildren.size(); i++) {
+                    if (!subGoal.LeafChildren.get(i).equals("_")) {
+                        neededColumns.add(i);
+                    }
+                }
+            }
+        }
+        return neededColumns;
+    }
+
     private void printRule(PrintStream ostream, String indent, ExecutionNode root) {
         if (root.rule != null) {
             ostream.println(indent+"("+root.rule+" "+root.name);
@@ -0,0 +1,216 @@
+/**
+ * Classifies a value the way "Integer.parseInt, else Double.parseDouble, else a string" would, without throwing
+ * an exception or allocating for the values a CSV file usually holds. The parsed number is kept in the parser,
+ * so one parser can be reused for every cell of a file.
+ */
+public class NumberParser {
+
+    public static final int INT = 0;
+    public static final int DOUBLE = 1;
+    public static final int STRING = 2;
+
+    // Powers of ten that are exact doubles. A mantissa below 2^53 times or divided by one of them is correctly
+    // rounded, which is the same double Double.parseDouble gives.
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private int intValue;
+    private double doubleValue;
+
+    /**
+     * @return INT, DOUBLE or STRING, see getInt and getDouble for the parsed number
+     */
+    public int parse(CharSequence value) {
+        if (parseInt(value)) {
+            return INT;
+        }
+        return parseDouble(value) ? DOUBLE : STRING;
+    }
+
+    public int getInt() {
+        return intValue;
+    }
+
+    public double getDouble() {
+        return doubleValue;
+    }
+
+    /**
+     * @return the same Integer, Double or String that trying Integer.parseInt and then Double.parseDouble would
+     */
+    public static Object parseValue(CharSequence value) {
+        NumberParser parser = new NumberParser();
+        return parser.getValue(value, parser.parse(value));
+    }
+
+    /**
+     * @param type what parse returned for 'value'
+     * @return the parsed Integer or Double, or 'value' as a String
+     */
+    public Object getValue(CharSequence value, int type) {
+        switch (type) {
+            case INT:    return intValue;
+            case DOUBLE: return doubleValue;
+            default:     return value.toString();
+        }
+    }
+
+    /**
+     * Accepts exactly what Integer.parseInt accepts: a sign and then digits, which may be any Unicode digits.
+     */
+    private boolean parseInt(CharSequence value) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        if (i == length) {
+            return false;
+        }
+
+        // Accumulate negatively, since Integer.MIN_VALUE has no positive counterpart.
+        long result = 0;
+        for (; i < length; i++) {
+            int digit = Character.digit(value.charAt(i), 10);
+            if (digit < 0) {
+                return false;
+            }
+            result = result * 10 - digit;
+            if (result < Integer.MIN_VALUE) {
+                return false;
+            }
+        }
+        if (!negative && result == Integer.MIN_VALUE) {
+            return false;
+        }
+        intValue = (int)(negative ? result : -result);
+        return true;
+    }
+
+    /**
+     * Parses plain decimal numbers such as "-12.5e3" by hand when the result is exact, and leaves everything else
+     * Double.parseDouble accepts (long mantissas, large exponents, NaN, Infinity, hex) to Double.parseDouble.
+     */
+    private boolean parseDouble(CharSequence value) {
+        // Double.parseDouble ignores whitespace around the number.
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean exact = true;
+        boolean point = false;
+        for (; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (point) {
+                        exponent--;
+                    }
+                }
+                else {
+                    exact = false;
+                }
+            }
+            else if (c == '.' && !point) {
+                point = true;
+            }
+            else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return parseSpecial(value, start, end);
+        }
+
+        if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                negativeExponent = value.charAt(i) == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int written = 0;
+            for (; i < end && value.charAt(i) >= '0' && value.charAt(i) <= '9'; i++) {
+                written = Math.min(written * 10 + (value.charAt(i) - '0'), 1000);
+            }
+            if (i == exponentStart) {
+                return false;
+            }
+            exponent += negativeExponent ? -written : written;
+        }
+        if (i < end && "fFdD".indexOf(value.charAt(i)) >= 0) {
+            i++;
+        }
+        if (i != end) {
+            // Hexadecimal doubles such as "0x1p3" stop at the 'x'.
+            return (value.charAt(i) == 'x' || value.charAt(i) == 'X') && tryParseDouble(value);
+        }
+
+        if (!exact || exponent < -22 || exponent > 22) {
+            doubleValue = Double.parseDouble(value.toString());
+            return true;
+        }
+        double result = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        doubleValue = negative ? -result : result;
+        return true;
+    }
+
+    /**
+     * Handles values without decimal digits that may still be doubles, such as "NaN" or "-Infinity".
+     */
+    private boolean parseSpecial(CharSequence value, int start, int end) {
+        int i = start;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        if (!startsWith(value, i, "NaN") && !startsWith(value, i, "Infinity")) {
+            return false;
+        }
+        return tryParseDouble(value);
+    }
+
+    private static boolean startsWith(CharSequence value, int start, String prefix) {
+        if (value.length() - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (value.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tryParseDouble(CharSequence value) {
+        try {
+            doubleValue = Double.parseDouble(value.toString());
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
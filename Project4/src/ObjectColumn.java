@@ -0,0 +1,76 @@
+import java.util.Arrays;
+
+/**
+ * A column of boxed values, used when a column mixes types or has empty values.
+ * A column that only ever held nulls (such as one skipped during load) doesn't allocate an array.
+ */
+public class ObjectColumn extends Column {
+
+    private Object[] values = null;
+
+    @Override
+    public Object get(int row) {
+        return values == null ? null : values[row];
+    }
+
+    @Override
+    public int hashAt(int row) {
+        return hashValue(get(row));
+    }
+
+    @Override
+    public boolean equalsAt(int row, Column other, int otherRow) {
+        return valuesEqual(get(row), other.get(otherRow));
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+        return true;
+    }
+
+    @Override
+    public void append(Object value) {
+        if (values == null) {
+            if (value == null) {
+                size++;
+                return;
+            }
+            values = new Object[grow(size, size + 1)];
+        }
+        else if (size == values.length) {
+            values = Arrays.copyOf(values, grow(values.length, size + 1));
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    public boolean canAppendFrom(Column source) {
+        return true;
+    }
+
+    @Override
+    public void appendFrom(Column source, int row) {
+        append(source.get(row));
+    }
+
+    @Override
+    public void truncate(int newSize) {
+        if (values != null) {
+            Arrays.fill(values, newSize, size, null);
+        }
+        size = newSize;
+    }
+
+    @Override
+    public Column emptyCopy() {
+        return new ObjectColumn();
+    }
+
+    @Override
+    public Column copy() {
+        ObjectColumn column = new ObjectColumn();
+        column.values = values == null ? null : Arrays.copyOf(values, Math.max(size, INITIAL_CAPACITY));
+        column.size = size;
+        return column;
+    }
+}
@@ -146,7 +146,7 @@ public class Operator {
     }
 
     public Object compute(String operator, Integer leftOp, Integer rightOp) {
-        return compute(operator, Double.valueOf(leftOp.toString()), Double.valueOf(rightOp.toString()));
+        return compute(operator, leftOp.doubleValue(), rightOp.doubleValue());
     }
 
     public Object compute(String operator, String leftOperand, String rightOperand) {
@@ -178,6 +178,172 @@ public class Operator {
         return result;
     }
 
+    // Operator codes for the primitive kernels below, so code that runs once per row doesn't switch on strings.
+    public static final int EQUAL = 0;
+    public static final int NOT_EQUAL = 1;
+    public static final int LESS_THAN = 2;
+    public static final int LESS_THAN_EQ = 3;
+    public static final int GREATER_THAN = 4;
+    public static final int GREATER_THAN_EQ = 5;
+    public static final int ADD = 6;
+    public static final int SUBTRACT = 7;
+    public static final int MULTIPLY = 8;
+    public static final int DIVIDE = 9;
+    public static final int MOD = 10;
+
+    /**
+     * @return the code of a binary operator, or -1 if there is no kernel for it
+     */
+    public static int code(String operator) {
+        switch (operator) {
+            case "=": return EQUAL;
+            case "!=": return NOT_EQUAL;
+            case "<": return LESS_THAN;
+            case "<=": return LESS_THAN_EQ;
+            case ">": return GREATER_THAN;
+            case ">=": return GREATER_THAN_EQ;
+            case "+": return ADD;
+            case "-": return SUBTRACT;
+            case "*": return MULTIPLY;
+            case "/": return DIVIDE;
+            case "%": return MOD;
+        }
+        return -1;
+    }
+
+    public static boolean isComparison(int code) {
+        return code >= EQUAL && code <= GREATER_THAN_EQ;
+    }
+
+    public static boolean isArithmetic(int code) {
+        return code >= ADD && code <= MOD;
+    }
+
+    /**
+     * @return the comparison that gives the same answer with its operands swapped, so "c < x" becomes "x > c"
+     */
+    public static int mirror(int comparison) {
+        switch (comparison) {
+            case LESS_THAN: return GREATER_THAN;
+            case LESS_THAN_EQ: return GREATER_THAN_EQ;
+            case GREATER_THAN: return LESS_THAN;
+            case GREATER_THAN_EQ: return LESS_THAN_EQ;
+        }
+        return comparison;
+    }
+
+    /**
+     * Compares two doubles the way compute(String, Double, Double) does. Equality is Double.equals, so NaN equals
+     * NaN and 0.0 doesn't equal -0.0.
+     */
+    public static boolean compare(int comparison, double a, double b) {
+        switch (comparison) {
+            case EQUAL: return Double.compare(a, b) == 0;
+            case NOT_EQUAL: return Double.compare(a, b) != 0;
+            case LESS_THAN: return a < b;
+            case LESS_THAN_EQ: return a < b || Double.compare(a, b) == 0;
+            case GREATER_THAN: return a > b;
+            default: return a > b || Double.compare(a, b) == 0;
+        }
+    }
+
+    public static boolean compare(int comparison, int a, int b) {
+        switch (comparison) {
+            case EQUAL: return a == b;
+            case NOT_EQUAL: return a != b;
+            case LESS_THAN: return a < b;
+            case LESS_THAN_EQ: return a <= b;
+            case GREATER_THAN: return a > b;
+            default: return a >= b;
+        }
+    }
+
+    public static boolean compare(int comparison, String a, String b) {
+        switch (comparison) {
+            case EQUAL: return a.equals(b);
+            case NOT_EQUAL: return !a.equals(b);
+            case LESS_THAN: return a.compareTo(b) < 0;
+            case LESS_THAN_EQ: return a.compareTo(b) <= 0;
+            case GREATER_THAN: return a.compareTo(b) > 0;
+            default: return a.compareTo(b) >= 0;
+        }
+    }
+
+    /**
+     * Integers are computed as doubles too, like compute(String, Integer, Integer), so 7 / 2 is 3.5.
+     */
+    public static double arithmetic(int operator, double a, double b) {
+        switch (operator) {
+            case ADD: return a + b;
+            case SUBTRACT: return a - b;
+            case MULTIPLY: return a * b;
+            case DIVIDE: return a / b;
+            default: return a % b;
+        }
+    }
+
+    /**
+     * Compares values[from, from + count) to a constant and clears the bits of 'selection' whose rows fail.
+     * Bit i of the selection belongs to values[from + i].
+     */
+    public static void select(int comparison, int[] values, int from, int count, int constant, long[] selection) {
+        for (int word = 0; word << 6 < count; word++) {
+            int start = from + (word << 6);
+            int length = Math.min(64, count - (word << 6));
+            long bits = 0;
+            switch (comparison) {
+                case EQUAL:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] == constant ? 1L : 0L) << j; }
+                    break;
+                case NOT_EQUAL:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] != constant ? 1L : 0L) << j; }
+                    break;
+                case LESS_THAN:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] < constant ? 1L : 0L) << j; }
+                    break;
+                case LESS_THAN_EQ:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] <= constant ? 1L : 0L) << j; }
+                    break;
+                case GREATER_THAN:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] > constant ? 1L : 0L) << j; }
+                    break;
+                default:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] >= constant ? 1L : 0L) << j; }
+                    break;
+            }
+            selection[word] &= bits;
+        }
+    }
+
+    /**
+     * Same as the int[] form, with equality following Double.equals like compare(int, double, double).
+     */
+    public static void select(int comparison, double[] values, int from, int count, double constant, long[] selection) {
+        for (int word = 0; word << 6 < count; word++) {
+            int start = from + (word << 6);
+            int length = Math.min(64, count - (word << 6));
+            long bits = 0;
+            switch (comparison) {
+                case EQUAL:
+                    for (int j = 0; j < length; j++) { bits |= (Double.compare(values[start + j], constant) == 0 ? 1L : 0L) << j; }
+                    break;
+                case NOT_EQUAL:
+                    for (int j = 0; j < length; j++) { bits |= (Double.compare(values[start + j], constant) != 0 ? 1L : 0L) << j; }
+                    break;
+                case LESS_THAN:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] < constant ? 1L : 0L) << j; }
+                    break;
+                case GREATER_THAN:
+                    for (int j = 0; j < length; j++) { bits |= (values[start + j] > constant ? 1L : 0L) << j; }
+                    break;
+                default:
+                    for (int j = 0; j < length; j++) { bits |= (compare(comparison, values[start + j], constant) ? 1L : 0L) << j; }
+                    break;
+            }
+            selection[word] &= bits;
+        }
+    }
+
     public Object computeUnary(String operator, Object operand) {
         switch (operator) {
             case "!":
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ParallelCSVLoader {
+
+    private static final char NEWLINE = '\n';
+
+    // The line a chunk starts on isn't known until the chunks before it have been read.
+    private static final int UNKNOWN_ROW = -1;
+
+    // Each worker gets a few chunks so that one slow chunk doesn't leave the other workers idle.
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private int threadCount;
+
+    public ParallelCSVLoader(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Parses a CSV file by splitting it into chunks at record boundaries and parsing the chunks on a pool of
+     * 'threadCount' workers.
+     * @param filePath path of the CSV file
+     * @param selectedColumns columns to read, see CSVParser.setSelectedColumns
+     * @return the rows of every chunk merged into one DataSet
+     * @throws IOException if the file can't be read
+     */
+    public DataSet load(String filePath, boolean[] selectedColumns) throws IOException {
+        MappedPeekableCharacterFileStream stream = new MappedPeekableCharacterFileStream(filePath);
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+
+        try {
+            ArrayList<String> headers = new CSVParser(stream).getHeaders();
+            long start = stream.getPosition();
+            long end = stream.getEnd();
+            int firstRow = stream.getCurrentRowIndex();
+            long[] starts = findChunks(stream, start, end);
+
+            // Chunks after the first start after a newline that may be inside a quoted value. Each is parsed as if
+            // it weren't, and checked against where the chunk before it really ended once that one is done.
+            ArrayList<Future<ParsedChunk>> results = new ArrayList<>();
+            for (int k = 0; k < starts.length; k++) {
+                long chunkStart = starts[k];
+                long limit = k + 1 < starts.length ? starts[k + 1] : end;
+                int row = k == 0 ? firstRow : UNKNOWN_ROW;
+                results.add(pool.submit(() -> parseChunk(stream, headers, selectedColumns, chunkStart, limit, row)));
+            }
+
+            DataSet merged = null;
+            long expected = start;
+            for (int k = 0; k < starts.length; k++) {
+                long limit = k + 1 < starts.length ? starts[k + 1] : end;
+                ParsedChunk chunk = results.get(k).get();
+                if (chunk.start != expected) {
+                    // The chunk started inside a quoted value, read it again from where the one before it ended.
+                    chunk = parseChunk(stream, headers, selectedColumns, expected, limit, UNKNOWN_ROW);
+                }
+                if (chunk.error != null) {
+                    if (chunk.firstRow == UNKNOWN_ROW) {
+                        // Read it again knowing its first line, so the error says where it is.
+                        chunk = parseChunk(stream, headers, selectedColumns, expected, limit,
+                                           rowAt(stream, start, firstRow, expected));
+                    }
+                    throw chunk.error;
+                }
+                expected = chunk.end;
+
+                // Chunks intern strings in dictionaries of their own, so they move to the shared ones only once here.
+                chunk.set.shareDictionaries();
+                if (merged == null) {
+                    merged = chunk.set;
+                }
+                else {
+                    merged.addAll(chunk.set);
+                }
+            }
+            return merged == null ? new DataSet(new CSVParser(stream, headers)) : merged;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + filePath, e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Failed to load " + filePath, e.getCause());
+        }
+        finally {
+            pool.shutdown();
+            stream.close();
+        }
+    }
+
+    /**
+     * The rows of one chunk, or the error parsing them threw, and the offset of the first record after the chunk.
+     */
+    private static class ParsedChunk {
+        private final long start;
+        private final long end;
+        private final int firstRow;
+        private final DataSet set;
+        private final RuntimeException error;
+
+        ParsedChunk(long start, long end, int firstRow, DataSet set, RuntimeException error) {
+            this.start = start;
+            this.end = end;
+            this.firstRow = firstRow;
+            this.set = set;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Parses the records that start in [start, limit). The last one is read to its end even if that is past 'limit'.
+     * Errors are kept rather than thrown, since a chunk that started inside a quoted value is read again anyway.
+     * @param firstRow line number of 'start' for error messages, or UNKNOWN_ROW
+     */
+    private static ParsedChunk parseChunk(MappedPeekableCharacterFileStream stream, ArrayList<String> headers,
+                                          boolean[] selectedColumns, long start, long limit, int firstRow) {
+        MappedPeekableCharacterFileStream range = new MappedPeekableCharacterFileStream(stream, start, stream.getEnd(), firstRow);
+        range.setRecordLimit(limit);
+        CSVParser parser = new CSVParser(range, headers);
+        parser.setSelectedColumns(selectedColumns);
+        try {
+            DataSet set = new DataSet(parser, false);
+            return new ParsedChunk(start, range.getPosition(), firstRow, set, null);
+        }
+        catch (RuntimeException e) {
+            return new ParsedChunk(start, -1, firstRow, null, e);
+        }
+    }
+
+    /**
+     * Picks where the chunks of [start, end) start: the first at 'start', and each of the others after the first
+     * newline past its share of the range. Only the bytes up to those newlines are read, so picking the chunks
+     * doesn't scan the file.
+     * @return the offsets the chunks start at, in increasing order
+     */
+    private long[] findChunks(MappedPeekableCharacterFileStream stream, long start, long end) {
+        if (start >= end) {
+            return new long[0];
+        }
+        int chunkCount = threadCount * CHUNKS_PER_THREAD;
+        long targetSize = Math.max(1, (end - start) / chunkCount);
+
+        long[] starts = new long[chunkCount];
+        int count = 0;
+        starts[count++] = start;
+        for (int k = 1; k < chunkCount; k++) {
+            long i = Math.max(start + k * targetSize, starts[count - 1]);
+            while (i < end && stream.byteAt(i) != NEWLINE) {
+                i++;
+            }
+            if (i + 1 < end) {
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * @return the line number of offset 'position', counting newlines from 'start', which is on line 'startRow'
+     */
+    private static int rowAt(MappedPeekableCharacterFileStream stream, long start, int startRow, long position) {
+        int row = startRow;
+        for (long i = start; i < position; i++) {
+            if (stream.byteAt(i) == NEWLINE) {
+                row++;
+            }
+        }
+        return row;
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The build side of a hash join split across a ForkJoinPool. The rows are radix-partitioned on the high bits of
+ * their key hashes and each partition gets a table small enough to stay in cache, built in parallel. Rule bodies
+ * probe the partitions from PipelineOperator.ParallelHashJoinProbe, whose workers collect their matches in buffers
+ * only they write to.
+ */
+public class PartitionedHashJoin {
+
+    // Partitions are sized to hold about this many build rows, so that their tables fit in cache.
+    private static final int PARTITION_ROWS = 16 * 1024;
+    private static final int MAX_PARTITION_BITS = 12;
+
+    // Rows hashed by one task when the keys are hashed in parallel.
+    private static final int HASH_GRAIN = 16 * DataSet.BATCH_SIZE;
+
+    private final ForkJoinPool pool;
+
+    public PartitionedHashJoin(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Pairs of table rows and probe tuples with equal keys, in the order they were found.
+     */
+    public static class Matches {
+        public int[] buildRows = new int[DataSet.BATCH_SIZE];
+        public int[] probeRows = new int[DataSet.BATCH_SIZE];
+        public int count = 0;
+
+        void add(int buildRow, int probeRow) {
+            if (count == buildRows.length) {
+                buildRows = Arrays.copyOf(buildRows, count * 2);
+                probeRows = Arrays.copyOf(probeRows, count * 2);
+            }
+            buildRows[count] = buildRow;
+            probeRows[count] = probeRow;
+            count++;
+        }
+    }
+
+    /**
+     * A hash table split into partitions on the high bits of the key hashes, with a HashJoinTable per partition.
+     * It is probed like a HashJoinTable, with the table of the partition the probe key hashes to.
+     */
+    public static class Table {
+        private final HashJoinTable[] tables;
+        private final int shift;
+        private BloomFilter bloomFilter = null;
+
+        /**
+         * Wraps a table that wasn't partitioned, so it can be probed like one that was.
+         */
+        public Table(HashJoinTable table) {
+            this(new HashJoinTable[] {table}, 0);
+        }
+
+        private Table(HashJoinTable[] tables, int shift) {
+            this.tables = tables;
+            this.shift = shift;
+        }
+
+        /**
+         * @return the table to probe with a key hashed by HashJoinTable.hashKeys
+         */
+        public HashJoinTable partitionOf(int hash) {
+            return tables.length == 1 ? tables[0] : tables[DataSet.mix(hash) >>> shift];
+        }
+
+        /**
+         * @return a Bloom filter of the hashes of the keys in every partition, see HashJoinTable.getBloomFilter
+         */
+        public synchronized BloomFilter getBloomFilter() {
+            if (tables.length == 1) {
+                return tables[0].getBloomFilter();
+            }
+            if (bloomFilter == null) {
+                int size = 0;
+                for (HashJoinTable table : tables) {
+                    size += table.size();
+                }
+                BloomFilter filter = new BloomFilter(size);
+                for (HashJoinTable table : tables) {
+                    table.addKeysTo(filter);
+                }
+                bloomFilter = filter;
+            }
+            return bloomFilter;
+        }
+    }
+
+    /**
+     * Builds a partitioned table over some rows of a set, hashing the keys and building the partitions in parallel.
+     * @param key indices of the key columns of 'set'
+     * @param selected the rows of 'set' to put in the table, or null for every row
+     */
+    public Table build(DataSet set, int[] key, BitSet selected) {
+        int[] rows = null;
+        if (selected != null) {
+            rows = selected.stream().filter(row -> row < set.size()).toArray();
+        }
+        int bits = partitionBits(rows == null ? set.size() : rows.length);
+        Partitions partitions = partition(set, key, bits, rows);
+
+        HashJoinTable[] tables = new HashJoinTable[1 << bits];
+        pool.invoke(new RangeTask(0, tables.length, 1, (from, to) -> {
+            for (int p = from; p < to; p++) {
+                int start = partitions.starts[p];
+                int end = partitions.starts[p + 1];
+                tables[p] = new HashJoinTable(set, key, Arrays.copyOfRange(partitions.rows, start, end),
+                                              Arrays.copyOfRange(partitions.hashes, start, end));
+            }
+        }));
+        return new Table(tables, 32 - bits);
+    }
+
+    /**
+     * @return the number of hash bits to partition on, so there are about PARTITION_ROWS build rows per partition
+     */
+    private static int partitionBits(int buildRows) {
+        int bits = 1;
+        while (bits < MAX_PARTITION_BITS && ((long)PARTITION_ROWS << bits) < buildRows) {
+            bits++;
+        }
+        return bits;
+    }
+
+    /**
+     * The row ids of a set grouped by partition, with the key hash of each. Partition p is [starts[p], starts[p + 1]).
+     */
+    private static class Partitions {
+        int[] rows;
+        int[] hashes;
+        int[] starts;
+    }
+
+    /**
+     * @param rowIds the rows of 'set' to partition, or null for every row
+     */
+    private Partitions partition(DataSet set, int[] key, int bits, int[] rowIds) {
+        int size = rowIds == null ? set.size() : rowIds.length;
+        Column[] columns = new Column[key.length];
+        for (int k = 0; k < key.length; k++) {
+            columns[k] = set.columns[key[k]];
+        }
+
+        // Hash the keys in parallel, a batch at a time.
+        int[] hashes = new int[size];
+        pool.invoke(new RangeTask(0, size, HASH_GRAIN, (from, to) -> {
+            int[] batch = new int[DataSet.BATCH_SIZE];
+            int[][] batchRows = new int[columns.length][];
+            Arrays.fill(batchRows, batch);
+            int[] batchHashes = new int[DataSet.BATCH_SIZE];
+            for (int start = from; start < to; start += batch.length) {
+                int count = Math.min(batch.length, to - start);
+                for (int i = 0; i < count; i++) {
+                    batch[i] = rowIds == null ? start + i : rowIds[start + i];
+                }
+                HashJoinTable.hashKeys(columns, batchRows, count, batchHashes);
+                System.arraycopy(batchHashes, 0, hashes, start, count);
+            }
+        }));
+
+        // Counting sort on the high bits of the mixed hash. Tables pick buckets with the low bits, so rows of a
+        // partition still spread over all of its table's buckets.
+        int shift = 32 - bits;
+        Partitions partitions = new Partitions();
+        partitions.starts = new int[(1 << bits) + 1];
+        for (int row = 0; row < size; row++) {
+            partitions.starts[(DataSet.mix(hashes[row]) >>> shift) + 1]++;
+        }
+        for (int p = 0; p < 1 << bits; p++) {
+            partitions.starts[p + 1] += partitions.starts[p];
+        }
+        int[] fill = Arrays.copyOf(partitions.starts, 1 << bits);
+        partitions.rows = new int[size];
+        partitions.hashes = new int[size];
+        for (int i = 0; i < size; i++) {
+            int position = fill[DataSet.mix(hashes[i]) >>> shift]++;
+            partitions.rows[position] = rowIds == null ? i : rowIds[i];
+            partitions.hashes[position] = hashes[i];
+        }
+        return partitions;
+    }
+
+    private interface RangeBody {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs 'body' over [from, to), splitting the range in halves until the pieces are at most 'grain' long.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final RangeBody body;
+
+        RangeTask(int from, int to, int grain, RangeBody body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, middle, grain, body), new RangeTask(middle, to, grain, body));
+        }
+    }
+}
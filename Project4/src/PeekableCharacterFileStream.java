@@ -4,12 +4,28 @@ import java.io.IOException;
 
 public class PeekableCharacterFileStream implements PeekableCharacterStream{
 
+    // Size of the lookahead window that is refilled from the file.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private FileInputStream fs;
-    private int currentRowIndex = 1;
-    private int currentColIndex = 1;
+    protected int currentRowIndex = 1;
+    protected int currentColIndex = 1;
+
+    // buffer[position, limit) holds the bytes that have been read from the file but not consumed yet.
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfFile = false;
 
     public PeekableCharacterFileStream(String filePath) throws FileNotFoundException {
         fs = new FileInputStream(filePath);
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Used by subclasses that provide their own source of bytes.
+     */
+    protected PeekableCharacterFileStream() {
     }
 
     /**
@@ -27,37 +43,91 @@ public class PeekableCharacterFileStream implements PeekableCharacterStream{
     }
 
     /**
-     * Checks to see if there are any characters left in the file stream
-     * @return true if more bytes are available else false
-     * @throws IOException
+     * Makes sure at least 'count' unconsumed bytes are in the window unless EOF is reached first.
+     * Unconsumed bytes are moved to the front of the window, and the window grows if a peek asks for more
+     * than it can hold.
+     * @param count number of bytes that should be available
+     * @return true if at least 'count' bytes are available
      */
-    @Override
-    public boolean moreAvailable() {
+    private boolean ensureAvailable(int count) {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (endOfFile) {
+            return false;
+        }
+
+        int remaining = limit - position;
+        if (count > buffer.length) {
+            byte[] larger = new byte[Math.max(count, buffer.length * 2)];
+            System.arraycopy(buffer, position, larger, 0, remaining);
+            buffer = larger;
+        }
+        else if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+
         try {
-            return fs.available() != 0;
+            while (limit < count) {
+                int read = fs.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    endOfFile = true;
+                    break;
+                }
+                limit += read;
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
-            return false;
+            endOfFile = true;
+        }
+
+        return limit - position >= count;
+    }
+
+    /**
+     * Updates the row and column of the stream after 'c' has been consumed.
+     * @param c the consumed character
+     */
+    protected void advancePosition(int c) {
+        if ((char)c == '\n') {
+            currentRowIndex++;
+            currentColIndex = 1;
+        }
+        else {
+            currentColIndex++;
         }
     }
 
+    /**
+     * @return true if no more records should be read from the stream even though characters are left, see
+     *         MappedPeekableCharacterFileStream.setRecordLimit
+     */
+    public boolean pastRecordLimit() {
+        return false;
+    }
+
+    /**
+     * Checks to see if there are any characters left in the file stream
+     * @return true if more bytes are available else false
+     */
+    @Override
+    public boolean moreAvailable() {
+        return ensureAvailable(1);
+    }
+
     /**
      * Peeks at the next character in the stream without consuming it.
      * @return the next byte of data, or -1 if EOF is reached.
      */
     @Override
     public int peekNextChar() {
-        try {
-            long oldPos = fs.getChannel().position();
-            int c = fs.read();
-            fs.getChannel().position(oldPos);
-            return c;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return -1;
+        if (position < limit || ensureAvailable(1)) {
+            return buffer[position] & 0xFF;
         }
+        return -1;
     }
 
     /**
@@ -67,16 +137,13 @@ public class PeekableCharacterFileStream implements PeekableCharacterStream{
      */
     @Override
     public int peekAheadChar(int ahead) {
-        try {
-            long oldPos = fs.getChannel().position();
-            fs.getChannel().position(oldPos + ahead);
-            int c = fs.read();
-            fs.getChannel().position(oldPos);
-            return c;
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (ahead < 0) {
             return -1;
         }
+        if (position + ahead < limit || ensureAvailable(ahead + 1)) {
+            return buffer[position + ahead] & 0xFF;
+        }
+        return -1;
     }
 
     /**
@@ -85,21 +152,13 @@ public class PeekableCharacterFileStream implements PeekableCharacterStream{
      */
     @Override
     public int getNextChar() {
-        try {
-            int c = fs.read();
-            if ((char)c == '\n') {
-                currentRowIndex++;
-                currentColIndex = 1;
-            }
-            else {
-                currentColIndex++;
-            }
+        if (position < limit || ensureAvailable(1)) {
+            int c = buffer[position++] & 0xFF;
+            advancePosition(c);
             return c;
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            return -1;
-        }
+        advancePosition(-1);
+        return -1;
     }
 
     /**
@@ -108,7 +167,9 @@ public class PeekableCharacterFileStream implements PeekableCharacterStream{
     @Override
     public void close() {
         try {
-            fs.close();
+            if (fs != null) {
+                fs.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,962 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A stage of a pipelined rule body. Each stage pulls batches of tuples from the stage before it, so nothing is
+ * stored between the first scan and the rule's result except the hash tables that joins probe.
+ * A tuple holds one row id for each set the body reads: rows[s][i] is the row of set s in tuple i of the current
+ * batch. Stages that only drop tuples compact the batch of the stage before them in place, while joins write their
+ * own batches. rows[s] is null for sets that are not read before this stage.
+ */
+public abstract class PipelineOperator {
+
+    protected final int[][] rows;
+
+    protected PipelineOperator(int[][] rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * @return the row id arrays of this stage's batches, which stay the same from batch to batch
+     */
+    public int[][] getRows() {
+        return rows;
+    }
+
+    /**
+     * Fills 'rows' with the next batch of tuples.
+     * @return the number of tuples in the batch, at most DataSet.BATCH_SIZE, or 0 once there are none left
+     */
+    public abstract int next();
+
+    /**
+     * @return row id arrays for a stage that writes its own batches of the same sets as 'rows' plus 'source'
+     */
+    protected static int[][] batchesLike(int[][] rows, int source) {
+        int[][] batches = new int[rows.length][];
+        for (int s = 0; s < rows.length; s++) {
+            if (rows[s] != null || s == source) {
+                batches[s] = new int[DataSet.BATCH_SIZE];
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * @return a selection with the bits of tuples [0, count) set
+     */
+    protected static long[] selectAll(long[] selection, int count) {
+        int words = (count + 63) >>> 6;
+        Arrays.fill(selection, 0, words, -1L);
+        if (count % 64 != 0) {
+            selection[words - 1] = (1L << count) - 1;
+        }
+        return selection;
+    }
+
+    /**
+     * Moves the selected tuples of a batch to its front, keeping their order.
+     * @return the number of selected tuples
+     */
+    protected static int compact(int[][] rows, int count, long[] selection) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if ((selection[i >>> 6] & (1L << i)) == 0) { continue; }
+            if (kept != i) {
+                for (int[] source : rows) {
+                    if (source != null) {
+                        source[kept] = source[i];
+                    }
+                }
+            }
+            kept++;
+        }
+        return kept;
+    }
+
+    /**
+     * Reads the rows of a set, or only the rows of it that are in 'selected'.
+     */
+    public static class Scan extends PipelineOperator {
+        private final int[] batch;
+        private final int size;
+        private final BitSet selected;
+        private int row = -1;
+
+        // Rows to read in this order instead of by row id, or null.
+        private final int[] order;
+        private int position = 0;
+
+        // Bloom filters of joins later in the body, and the columns of this set their keys are read from.
+        private final ArrayList<BloomFilter> bloomFilters = new ArrayList<>();
+        private final ArrayList<Column[]> bloomKeys = new ArrayList<>();
+        private int[] hashes = null;
+        private long[] selection = null;
+
+        public Scan(int sourceCount, int source, DataSet set, BitSet selected) {
+            this(sourceCount, source, set, selected, null);
+        }
+
+        /**
+         * @param order every row of the set in the order to read them, such as the rows of a sorted index
+         */
+        public Scan(int sourceCount, int source, DataSet set, BitSet selected, int[] order) {
+            super(new int[sourceCount][]);
+            batch = rows[source] = new int[DataSet.BATCH_SIZE];
+            size = set.size();
+            this.selected = selected;
+            this.order = order;
+        }
+
+        /**
+         * Drops the rows whose key certainly matches no row of a hash join later in the body, before any stage after
+         * the scan reads them. Must be called before the first batch is read.
+         * @param keyColumns the columns of this set the join's probe key is read from
+         */
+        public void addBloomFilter(BloomFilter filter, Column[] keyColumns) {
+            bloomFilters.add(filter);
+            bloomKeys.add(keyColumns);
+            if (hashes == null) {
+                hashes = new int[DataSet.BATCH_SIZE];
+                selection = new long[DataSet.BATCH_SIZE / 64];
+            }
+        }
+
+        @Override
+        public int next() {
+            int count;
+            while ((count = read()) > 0 && !bloomFilters.isEmpty()) {
+                selectAll(selection, count);
+                int[][] keyRows = new int[0][];
+                for (int f = 0; f < bloomFilters.size(); f++) {
+                    Column[] keys = bloomKeys.get(f);
+                    if (keyRows.length != keys.length) {
+                        keyRows = new int[keys.length][];
+                        Arrays.fill(keyRows, batch);
+                    }
+                    HashJoinTable.hashKeys(keys, keyRows, count, hashes);
+                    BloomFilter filter = bloomFilters.get(f);
+                    for (int i = 0; i < count; i++) {
+                        if (!filter.mightContain(hashes[i])) {
+                            selection[i >>> 6] &= ~(1L << i);
+                        }
+                    }
+                }
+                int kept = compact(rows, count, selection);
+                if (kept > 0) {
+                    return kept;
+                }
+            }
+            return count;
+        }
+
+        private int read() {
+            int count = 0;
+            if (order != null) {
+                while (count < batch.length && position < order.length) {
+                    int row = order[position++];
+                    if (selected == null || selected.get(row)) {
+                        batch[count++] = row;
+                    }
+                }
+                return count;
+            }
+            while (count < batch.length && row < size) {
+                row = selected == null ? row + 1 : selected.nextSetBit(row + 1);
+                if (row < 0 || row >= size) {
+                    row = size;
+                    break;
+                }
+                batch[count++] = row;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Passes on the tuples for which a compiled relation holds. The relation reads the batch through the row id
+     * arrays of the stage before it, so tuple i is evaluated as row i.
+     */
+    public static class Filter extends PipelineOperator {
+        private final PipelineOperator child;
+        private final CompiledExpression condition;
+        private final long[] selection = new long[DataSet.BATCH_SIZE / 64];
+
+        public Filter(PipelineOperator child, CompiledExpression condition) {
+            super(child.rows);
+            this.child = child;
+            this.condition = condition;
+        }
+
+        @Override
+        public int next() {
+            int count;
+            while ((count = child.next()) > 0) {
+                condition.select(0, count, selectAll(selection, count));
+                int kept = compact(rows, count, selection);
+                if (kept > 0) {
+                    return kept;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Extends each tuple with every row of a hash table whose key matches the tuple's key. Keys are hashed a batch
+     * at a time before the table is probed.
+     */
+    public static class HashJoinProbe extends PipelineOperator {
+        private final PipelineOperator child;
+        private final int source;
+        private final HashJoinTable table;
+        private final Column[] probeColumns;
+        private final int[][] probeRows;
+        private final int[] hashes = new int[DataSet.BATCH_SIZE];
+
+        // Position in the child's current batch and the next table row to pair with it, or -1.
+        private int inputCount = 0;
+        private int input = 0;
+        private int match = -1;
+
+        /**
+         * @param source the set of the table, whose row the probe adds to each tuple
+         * @param probeColumns value k of a tuple's key is probeColumns[k] at its row of set probeSources[k]
+         */
+        public HashJoinProbe(PipelineOperator child, int source, HashJoinTable table, Column[] probeColumns, int[] probeSources) {
+            super(batchesLike(child.rows, source));
+            this.child = child;
+            this.source = source;
+            this.table = table;
+            this.probeColumns = probeColumns;
+            probeRows = new int[probeSources.length][];
+            for (int k = 0; k < probeSources.length; k++) {
+                probeRows[k] = child.rows[probeSources[k]];
+            }
+        }
+
+        @Override
+        public int next() {
+            int count = 0;
+            while (count < DataSet.BATCH_SIZE) {
+                if (match == -1) {
+                    if (++input >= inputCount) {
+                        inputCount = child.next();
+                        input = 0;
+                        if (inputCount == 0) {
+                            break;
+                        }
+                        HashJoinTable.hashKeys(probeColumns, probeRows, inputCount, hashes);
+                    }
+                    match = table.firstMatch(hashes[input], probeColumns, probeRows, input);
+                    continue;
+                }
+
+                for (int s = 0; s < rows.length; s++) {
+                    if (s != source && rows[s] != null) {
+                        rows[s][count] = child.rows[s][input];
+                    }
+                }
+                rows[source][count++] = table.getRow(match);
+                match = table.nextMatch(match, probeColumns, probeRows, input);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Extends each tuple with every row of a partitioned hash table whose key equals the tuple's, like HashJoinProbe,
+     * or keeps it once if any row matches, like SemiJoin, for inputs large enough to probe on a thread pool. Batches
+     * of the child are gathered into rounds, whose units of tuples are probed in parallel, and the matches are handed
+     * on unit by unit, so the tuples leave in the order they came in.
+     */
+    public static class ParallelHashJoinProbe extends PipelineOperator {
+        // Batches of the child gathered per round, and tuples of a round one unit of work probes.
+        private static final int ROUND_BATCHES = 64;
+        private static final int UNIT_TUPLES = 4 * DataSet.BATCH_SIZE;
+
+        private final PipelineOperator child;
+        private final int source;
+        private final PartitionedHashJoin.Table table;
+        private final Column[] probeColumns;
+        private final int[] probeSources;
+        private final ForkJoinPool pool;
+        private final Unit[] units;
+
+        // The tuples of the current round, staged[s][i] is the row of set s in tuple i.
+        private final int[][] staged;
+        private int stagedCount = 0;
+        private boolean childDone = false;
+
+        // The units of the current round and the unit and match being handed on.
+        private int unitCount = 0;
+        private int unit = 0;
+        private int pair = 0;
+
+        /**
+         * @param source the set of the table, whose row the probe adds to each tuple unless 'existenceOnly'
+         * @param probeColumns value k of a tuple's key is probeColumns[k] at its row of set probeSources[k]
+         * @param existenceOnly true to keep each tuple once if any row matches instead of pairing it with every row
+         */
+        public ParallelHashJoinProbe(PipelineOperator child, int source, PartitionedHashJoin.Table table,
+                                     Column[] probeColumns, int[] probeSources, boolean existenceOnly,
+                                     ForkJoinPool pool) {
+            super(batchesLike(child.rows, existenceOnly ? -1 : source));
+            this.child = child;
+            this.source = existenceOnly ? -1 : source;
+            this.table = table;
+            this.probeColumns = probeColumns;
+            this.probeSources = probeSources;
+            this.pool = pool;
+            staged = new int[child.rows.length][];
+            for (int s = 0; s < staged.length; s++) {
+                if (child.rows[s] != null) {
+                    staged[s] = new int[ROUND_BATCHES * DataSet.BATCH_SIZE];
+                }
+            }
+            units = new Unit[ROUND_BATCHES * DataSet.BATCH_SIZE / UNIT_TUPLES];
+            for (int i = 0; i < units.length; i++) {
+                units[i] = new Unit(existenceOnly);
+            }
+        }
+
+        @Override
+        public int next() {
+            int count = 0;
+            while (count < DataSet.BATCH_SIZE) {
+                if (unit < unitCount) {
+                    PartitionedHashJoin.Matches current = units[unit].matches;
+                    if (pair == current.count) {
+                        unit++;
+                        pair = 0;
+                        continue;
+                    }
+                    int tuple = current.probeRows[pair];
+                    for (int s = 0; s < rows.length; s++) {
+                        if (s != source && rows[s] != null) {
+                            rows[s][count] = staged[s][tuple];
+                        }
+                    }
+                    if (source != -1) {
+                        rows[source][count] = current.buildRows[pair];
+                    }
+                    count++;
+                    pair++;
+                    continue;
+                }
+
+                if (!stage()) {
+                    break;
+                }
+                runRound();
+            }
+            return count;
+        }
+
+        /**
+         * Gathers the child's next batches into the staged tuples.
+         * @return false once the child has no tuples left
+         */
+        private boolean stage() {
+            stagedCount = 0;
+            while (!childDone && stagedCount < ROUND_BATCHES * DataSet.BATCH_SIZE) {
+                int count = child.next();
+                if (count == 0) {
+                    childDone = true;
+                    break;
+                }
+                for (int s = 0; s < staged.length; s++) {
+                    if (staged[s] != null) {
+                        System.arraycopy(child.rows[s], 0, staged[s], stagedCount, count);
+                    }
+                }
+                stagedCount += count;
+            }
+            return stagedCount > 0;
+        }
+
+        /**
+         * Probes the staged tuples, a unit of them per task.
+         */
+        private void runRound() {
+            unitCount = (stagedCount + UNIT_TUPLES - 1) / UNIT_TUPLES;
+            for (int u = 0; u < unitCount; u++) {
+                units[u].set(u * UNIT_TUPLES, Math.min(UNIT_TUPLES, stagedCount - u * UNIT_TUPLES));
+            }
+            if (unitCount == 1) {
+                units[0].compute();
+            }
+            else {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(Arrays.copyOf(units, unitCount));
+                    }
+                });
+                for (int u = 0; u < unitCount; u++) {
+                    units[u].reinitialize();
+                }
+            }
+            unit = 0;
+            pair = 0;
+        }
+
+        /**
+         * Probes a unit of the staged tuples a batch at a time and records the table rows they match.
+         */
+        private class Unit extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final boolean firstMatchOnly;
+            private final int[][] probeRows = new int[probeSources.length][DataSet.BATCH_SIZE];
+            private final int[] hashes = new int[DataSet.BATCH_SIZE];
+
+            private int firstTuple;
+            private int tupleCount;
+
+            // The table row and staged tuple of each match.
+            private final PartitionedHashJoin.Matches matches = new PartitionedHashJoin.Matches();
+
+            Unit(boolean firstMatchOnly) {
+                this.firstMatchOnly = firstMatchOnly;
+            }
+
+            void set(int firstTuple, int tupleCount) {
+                this.firstTuple = firstTuple;
+                this.tupleCount = tupleCount;
+            }
+
+            @Override
+            protected void compute() {
+                matches.count = 0;
+                for (int start = firstTuple; start < firstTuple + tupleCount; start += DataSet.BATCH_SIZE) {
+                    int count = Math.min(DataSet.BATCH_SIZE, firstTuple + tupleCount - start);
+                    for (int k = 0; k < probeSources.length; k++) {
+                        System.arraycopy(staged[probeSources[k]], start, probeRows[k], 0, count);
+                    }
+                    HashJoinTable.hashKeys(probeColumns, probeRows, count, hashes);
+                    for (int i = 0; i < count; i++) {
+                        HashJoinTable partition = table.partitionOf(hashes[i]);
+                        int match = partition.firstMatch(hashes[i], probeColumns, probeRows, i);
+                        while (match != -1) {
+                            matches.add(partition.getRow(match), start + i);
+                            if (firstMatchOnly) {
+                                break;
+                            }
+                            match = partition.nextMatch(match, probeColumns, probeRows, i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Extends each tuple with the rows of a sorted index whose value passes "value op key", where the key is a number
+     * the tuple reads from an int or double column. The index is searched for each tuple, or swept alongside the
+     * tuples when they arrive in ascending key order, which merges two sorted inputs. Used for equality joins on
+     * sorted inputs and for joins on a comparison between two invocations.
+     */
+    public static class MergeJoin extends PipelineOperator {
+        private final PipelineOperator child;
+        private final int source;
+        private final SortedIndex index;
+        private final SortedIndex.Cursor cursor;
+        private final int comparison;
+        private final Column probeColumn;
+        private final int[] probeRows;
+        private final BitSet selected;
+
+        // Position in the child's current batch, the ranges of the index it passes, and the next position to pair
+        // with it, or -1.
+        private int inputCount = 0;
+        private int input = 0;
+        private final int[] bounds = new int[4];
+        private int position = -1;
+
+        /**
+         * @param source the set of the index, whose row the join adds to each tuple
+         * @param comparison the Operator comparison, other than NOT_EQUAL, between the index's values and the key
+         * @param probeColumn the key of a tuple is probeColumn at its row of set probeSource
+         * @param ascending true if the child's tuples come in ascending key order
+         * @param selected the rows of the index to join with, or null for all of them
+         */
+        public MergeJoin(PipelineOperator child, int source, SortedIndex index, int comparison, Column probeColumn,
+                         int probeSource, boolean ascending, BitSet selected) {
+            super(batchesLike(child.rows, source));
+            this.child = child;
+            this.source = source;
+            this.index = index;
+            this.comparison = comparison;
+            this.probeColumn = probeColumn;
+            this.selected = selected;
+            cursor = index.new Cursor(ascending);
+            probeRows = child.rows[probeSource];
+        }
+
+        @Override
+        public int next() {
+            int count = 0;
+            while (count < DataSet.BATCH_SIZE) {
+                if (position == -1) {
+                    if (++input >= inputCount) {
+                        inputCount = child.next();
+                        input = 0;
+                        if (inputCount == 0) {
+                            break;
+                        }
+                    }
+                    cursor.find(comparison, numberAt(probeColumn, probeRows[input]), bounds);
+                    position = bounds[0];
+                }
+                if (position == bounds[1]) {
+                    // Continue with the second range, then with the next tuple.
+                    if (bounds[2] < bounds[3]) {
+                        position = bounds[2];
+                        bounds[1] = bounds[3];
+                        bounds[2] = bounds[3];
+                    }
+                    else {
+                        position = -1;
+                    }
+                    continue;
+                }
+
+                int row = index.getRow(position++);
+                if (selected != null && !selected.get(row)) {
+                    continue;
+                }
+                for (int s = 0; s < rows.length; s++) {
+                    if (s != source && rows[s] != null) {
+                        rows[s][count] = child.rows[s][input];
+                    }
+                }
+                rows[source][count++] = row;
+            }
+            return count;
+        }
+
+        static double numberAt(Column column, int row) {
+            if (column instanceof IntColumn) {
+                return ((IntColumn)column).getValues()[row];
+            }
+            return ((DoubleColumn)column).getValues()[row];
+        }
+    }
+
+    /**
+     * Passes on the tuples for which some row of a sorted index passes "value op key", for invocations joined on a
+     * comparison that bind no variable the rest of the body reads. Each tuple is kept once however many rows pass,
+     * so a body such as "all but the oldest" does a search per tuple instead of pairing every tuple with every row.
+     */
+    public static class MergeSemiJoin extends PipelineOperator {
+        private final PipelineOperator child;
+        private final SortedIndex index;
+        private final SortedIndex.Cursor cursor;
+        private final int comparison;
+        private final Column probeColumn;
+        private final int[] probeRows;
+        private final BitSet selected;
+        private final int[] bounds = new int[4];
+        private final long[] selection = new long[DataSet.BATCH_SIZE / 64];
+
+        /**
+         * See MergeJoin for the parameters.
+         */
+        public MergeSemiJoin(PipelineOperator child, SortedIndex index, int comparison, Column probeColumn,
+                             int probeSource, boolean ascending, BitSet selected) {
+            super(child.rows);
+            this.child = child;
+            this.index = index;
+            this.comparison = comparison;
+            this.probeColumn = probeColumn;
+            this.selected = selected;
+            cursor = index.new Cursor(ascending);
+            probeRows = child.rows[probeSource];
+        }
+
+        @Override
+        public int next() {
+            int count;
+            while ((count = child.next()) > 0) {
+                selectAll(selection, count);
+                for (int i = 0; i < count; i++) {
+                    cursor.find(comparison, MergeJoin.numberAt(probeColumn, probeRows[i]), bounds);
+                    if (!anySelected(bounds[0], bounds[1]) && !anySelected(bounds[2], bounds[3])) {
+                        selection[i >>> 6] &= ~(1L << i);
+                    }
+                }
+                int kept = compact(rows, count, selection);
+                if (kept > 0) {
+                    return kept;
+                }
+            }
+            return 0;
+        }
+
+        private boolean anySelected(int from, int to) {
+            if (selected == null) {
+                return from < to;
+            }
+            for (int position = from; position < to; position++) {
+                if (selected.get(index.getRow(position))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Extends each tuple with every row of a set, or every row of it in 'selected', for invocations that share no
+     * variable with the tuple.
+     */
+    public static class CrossProduct extends PipelineOperator {
+        private final PipelineOperator child;
+        private final int source;
+        private final int size;
+        private final BitSet selected;
+
+        private int inputCount = 0;
+        private int input = 0;
+        private int row = -1;
+
+        public CrossProduct(PipelineOperator child, int source, DataSet set, BitSet selected) {
+            super(batchesLike(child.rows, source));
+            this.child = child;
+            this.source = source;
+            size = set.size();
+            this.selected = selected;
+        }
+
+        @Override
+        public int next() {
+            int count = 0;
+            while (count < DataSet.BATCH_SIZE) {
+                if (input < inputCount) {
+                    row = selected == null ? row + 1 : selected.nextSetBit(row + 1);
+                    if (row < 0 || row >= size) {
+                        input++;
+                        row = -1;
+                        continue;
+                    }
+                    for (int s = 0; s < rows.length; s++) {
+                        if (s != source && rows[s] != null) {
+                            rows[s][count] = child.rows[s][input];
+                        }
+                    }
+                    rows[source][count++] = row;
+                    continue;
+                }
+                inputCount = child.next();
+                input = 0;
+                if (inputCount == 0) {
+                    break;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Pairs each tuple with every row of a set, or every row of it in 'selected', and passes on only the pairs for
+     * which some relations hold, for invocations that share no variable with the tuple. Pairs are formed and
+     * filtered a block of tuples by a block of rows at a time, so both stay in cache while the relations run over
+     * them and pairs that fail are never handed on. Blocks of a batch of tuples run on a thread pool if one is given.
+     */
+    public static class FilteredCrossProduct extends PipelineOperator {
+        // Tuples of a batch per block, and rows of the set one unit of work pairs them with.
+        private static final int BLOCK_TUPLES = 64;
+        private static final int BLOCK_ROWS = 4096;
+
+        /**
+         * Compiles the relations to evaluate over pairs, reading set s of pair i at rows[s][i]. Compiled relations
+         * keep scratch buffers, so each block being filtered at the same time needs relations of its own.
+         */
+        public interface Conditions {
+            CompiledExpression[] compile(int[][] rows);
+        }
+
+        private final PipelineOperator child;
+        private final int source;
+        private final int[] setRows;
+        private final ForkJoinPool pool;
+        private final Block[] blocks;
+
+        // The child's current batch, the next unit of work in it, and the blocks of the current round of work
+        // whose pairs are being handed on.
+        private int inputCount = 0;
+        private int nextUnit = 0;
+        private int unitCount = 0;
+        private int roundBlocks = 0;
+        private int block = 0;
+        private int pair = 0;
+
+        /**
+         * @param pool the pool to filter blocks on, or null to filter them on the calling thread
+         */
+        public FilteredCrossProduct(PipelineOperator child, int source, DataSet set, BitSet selected,
+                                    Conditions conditions, ForkJoinPool pool) {
+            super(batchesLike(child.rows, source));
+            this.child = child;
+            this.source = source;
+            this.pool = pool;
+            setRows = selected == null ? rangeOf(set.size()) : selected.stream().filter(row -> row < set.size()).toArray();
+            blocks = new Block[pool == null ? 1 : pool.getParallelism()];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = new Block(conditions);
+            }
+        }
+
+        private static int[] rangeOf(int size) {
+            int[] rows = new int[size];
+            for (int row = 0; row < size; row++) {
+                rows[row] = row;
+            }
+            return rows;
+        }
+
+        @Override
+        public int next() {
+            int count = 0;
+            while (count < DataSet.BATCH_SIZE) {
+                if (block < roundBlocks) {
+                    Block current = blocks[block];
+                    if (pair == current.count) {
+                        block++;
+                        pair = 0;
+                        continue;
+                    }
+                    int tuple = current.tuples[pair];
+                    for (int s = 0; s < rows.length; s++) {
+                        if (s != source && rows[s] != null) {
+                            rows[s][count] = child.rows[s][tuple];
+                        }
+                    }
+                    rows[source][count++] = current.pairedRows[pair++];
+                    continue;
+                }
+
+                if (nextUnit == unitCount) {
+                    inputCount = child.next();
+                    if (inputCount == 0 || setRows.length == 0) {
+                        break;
+                    }
+                    nextUnit = 0;
+                    unitCount = ((inputCount + BLOCK_TUPLES - 1) / BLOCK_TUPLES) * ((setRows.length + BLOCK_ROWS - 1) / BLOCK_ROWS);
+                }
+                runRound();
+            }
+            return count;
+        }
+
+        /**
+         * Filters the next units of work of the current batch, one per block.
+         */
+        private void runRound() {
+            roundBlocks = Math.min(blocks.length, unitCount - nextUnit);
+            int rowUnits = (setRows.length + BLOCK_ROWS - 1) / BLOCK_ROWS;
+            for (int b = 0; b < roundBlocks; b++) {
+                int unit = nextUnit + b;
+                int firstTuple = (unit / rowUnits) * BLOCK_TUPLES;
+                int firstRow = (unit % rowUnits) * BLOCK_ROWS;
+                blocks[b].set(firstTuple, Math.min(BLOCK_TUPLES, inputCount - firstTuple),
+                              firstRow, Math.min(BLOCK_ROWS, setRows.length - firstRow));
+            }
+            nextUnit += roundBlocks;
+            if (pool == null || roundBlocks == 1) {
+                for (int b = 0; b < roundBlocks; b++) {
+                    blocks[b].compute();
+                }
+            }
+            else {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(Arrays.copyOf(blocks, roundBlocks));
+                    }
+                });
+                for (int b = 0; b < roundBlocks; b++) {
+                    blocks[b].reinitialize();
+                }
+            }
+            block = 0;
+            pair = 0;
+        }
+
+        /**
+         * Pairs a block of tuples with a block of rows and keeps the pairs that pass.
+         */
+        private class Block extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[][] pairs = batchesLike(child.rows, source);
+            private final CompiledExpression[] conditions;
+            private final long[] selection = new long[DataSet.BATCH_SIZE / 64];
+
+            private int firstTuple;
+            private int tupleCount;
+            private int firstRow;
+            private int rowCount;
+
+            // The tuple index and row of each pair that passed.
+            private int[] tuples = new int[DataSet.BATCH_SIZE];
+            private int[] pairedRows = new int[DataSet.BATCH_SIZE];
+            private int count = 0;
+
+            Block(Conditions conditions) {
+                this.conditions = conditions.compile(pairs);
+            }
+
+            void set(int firstTuple, int tupleCount, int firstRow, int rowCount) {
+                this.firstTuple = firstTuple;
+                this.tupleCount = tupleCount;
+                this.firstRow = firstRow;
+                this.rowCount = rowCount;
+            }
+
+            @Override
+            protected void compute() {
+                count = 0;
+                int rowStep = DataSet.BATCH_SIZE / tupleCount;
+                for (int start = firstRow; start < firstRow + rowCount; start += rowStep) {
+                    int end = Math.min(start + rowStep, firstRow + rowCount);
+                    int size = 0;
+                    for (int r = start; r < end; r++) {
+                        for (int t = firstTuple; t < firstTuple + tupleCount; t++) {
+                            for (int s = 0; s < pairs.length; s++) {
+                                if (s != source && pairs[s] != null) {
+                                    pairs[s][size] = child.rows[s][t];
+                                }
+                            }
+                            pairs[source][size++] = setRows[r];
+                        }
+                    }
+
+                    selectAll(selection, size);
+                    for (CompiledExpression condition : conditions) {
+                        condition.select(0, size, selection);
+                    }
+                    for (int i = 0; i < size; i++) {
+                        if ((selection[i >>> 6] & (1L << i)) == 0) { continue; }
+                        if (count == tuples.length) {
+                            tuples = Arrays.copyOf(tuples, count * 2);
+                            pairedRows = Arrays.copyOf(pairedRows, count * 2);
+                        }
+                        tuples[count] = firstTuple + i % tupleCount;
+                        pairedRows[count++] = pairs[source][i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes on the tuples whose key matches some row of a hash table, for positive invocations that bind no
+     * variable the rest of the body reads. The probe stops at the first matching row and the tuple is kept once, as
+     * it is, instead of being paired with every row that matches.
+     */
+    public static class SemiJoin extends PipelineOperator {
+        private final PipelineOperator child;
+        private final HashJoinTable table;
+        private final Column[] probeColumns;
+        private final int[][] probeRows;
+        private final boolean keepMatches;
+        private final int[] hashes = new int[DataSet.BATCH_SIZE];
+        private final long[] selection = new long[DataSet.BATCH_SIZE / 64];
+
+        public SemiJoin(PipelineOperator child, HashJoinTable table, Column[] probeColumns, int[] probeSources) {
+            this(child, table, probeColumns, probeSources, true);
+        }
+
+        /**
+         * @param keepMatches true to pass on the tuples that match a row, false to pass on those that don't
+         */
+        protected SemiJoin(PipelineOperator child, HashJoinTable table, Column[] probeColumns, int[] probeSources,
+                           boolean keepMatches) {
+            super(child.rows);
+            this.child = child;
+            this.table = table;
+            this.probeColumns = probeColumns;
+            this.keepMatches = keepMatches;
+            probeRows = new int[probeSources.length][];
+            for (int k = 0; k < probeSources.length; k++) {
+                probeRows[k] = child.rows[probeSources[k]];
+            }
+        }
+
+        @Override
+        public int next() {
+            int count;
+            while ((count = child.next()) > 0) {
+                HashJoinTable.hashKeys(probeColumns, probeRows, count, hashes);
+                selectAll(selection, count);
+                for (int i = 0; i < count; i++) {
+                    if ((table.firstMatch(hashes[i], probeColumns, probeRows, i) != -1) != keepMatches) {
+                        selection[i >>> 6] &= ~(1L << i);
+                    }
+                }
+                int kept = compact(rows, count, selection);
+                if (kept > 0) {
+                    return kept;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Passes on the tuples whose key matches no row of a hash table, for negated invocations.
+     */
+    public static class AntiJoin extends SemiJoin {
+        public AntiJoin(PipelineOperator child, HashJoinTable table, Column[] probeColumns, int[] probeSources) {
+            super(child, table, probeColumns, probeSources, false);
+        }
+    }
+
+    /**
+     * Passes on the tuples whose string key has a dictionary code outside a set of codes, for negated invocations
+     * keyed on one string column that shares its dictionary with the tuple's. Testing a bit replaces hashing the
+     * key and walking a chain of the table.
+     */
+    public static class CodeAntiJoin extends PipelineOperator {
+        private final PipelineOperator child;
+        private final BitSet codes;
+        private final StringColumn probeColumn;
+        private final int[] probeRows;
+        private final long[] selection = new long[DataSet.BATCH_SIZE / 64];
+
+        /**
+         * @param codes the codes of the negated invocation's keys
+         * @param probeColumn the key of a tuple is probeColumn at its row of set probeSource
+         */
+        public CodeAntiJoin(PipelineOperator child, BitSet codes, StringColumn probeColumn, int probeSource) {
+            super(child.rows);
+            this.child = child;
+            this.codes = codes;
+            this.probeColumn = probeColumn;
+            probeRows = child.rows[probeSource];
+        }
+
+        @Override
+        public int next() {
+            int count;
+            while ((count = child.next()) > 0) {
+                selectAll(selection, count);
+                for (int i = 0; i < count; i++) {
+                    if (codes.get(probeColumn.getCode(probeRows[i]))) {
+                        selection[i >>> 6] &= ~(1L << i);
+                    }
+                }
+                int kept = compact(rows, count, selection);
+                if (kept > 0) {
+                    return kept;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The rows of a numeric column sorted by value, so the rows for which a relation between the column and a constant
+ * holds can be found with binary searches instead of a scan. Values are ordered like Double.compare orders them,
+ * which keeps the rows that pass any comparison in one or two runs of the order.
+ */
+public class SortedIndex {
+
+    private int[] rows;
+    private double[] keys;
+
+    // Rows with NaN values sort last and start at this position.
+    private int nanStart;
+
+    /**
+     * Sorts the rows [0, size) of a column, which must be one canIndex accepts.
+     */
+    public SortedIndex(Column column, int size) {
+        rows = new int[size];
+        for (int row = 0; row < size; row++) {
+            rows[row] = row;
+        }
+        keys = keysOf(column, rows);
+        int[] rowBuffer = new int[size];
+        double[] keyBuffer = new double[size];
+        sort(0, size, rowBuffer, keyBuffer);
+        findNaN();
+    }
+
+    /**
+     * Sorts only the rows of [0, size) that are in 'selected', such as the rows of a set that pass its filters.
+     */
+    public SortedIndex(Column column, int size, BitSet selected) {
+        rows = new int[selected.cardinality()];
+        int count = 0;
+        for (int row = selected.nextSetBit(0); row >= 0 && row < size; row = selected.nextSetBit(row + 1)) {
+            rows[count++] = row;
+        }
+        rows = Arrays.copyOf(rows, count);
+        keys = keysOf(column, rows);
+        sort(0, count, new int[count], new double[count]);
+        findNaN();
+    }
+
+    /**
+     * Wraps rows of a column that are already sorted, such as an index written by an earlier run.
+     */
+    public SortedIndex(Column column, int[] rows) {
+        this.rows = rows;
+        keys = keysOf(column, rows);
+        findNaN();
+    }
+
+    /**
+     * @return true if a column holds values a SortedIndex can order
+     */
+    public static boolean canIndex(Column column) {
+        return column instanceof IntColumn || column instanceof DoubleColumn;
+    }
+
+    private static double[] keysOf(Column column, int[] rows) {
+        double[] keys = new double[rows.length];
+        if (column instanceof IntColumn) {
+            int[] values = ((IntColumn)column).getValues();
+            for (int i = 0; i < rows.length; i++) {
+                keys[i] = values[rows[i]];
+            }
+        }
+        else {
+            double[] values = ((DoubleColumn)column).getValues();
+            for (int i = 0; i < rows.length; i++) {
+                keys[i] = values[rows[i]];
+            }
+        }
+        return keys;
+    }
+
+    private void findNaN() {
+        nanStart = rows.length;
+        while (nanStart > 0 && Double.isNaN(keys[nanStart - 1])) {
+            nanStart--;
+        }
+    }
+
+    /**
+     * A stable merge sort of rows[from, to) by key, which keeps equal values in row order.
+     */
+    private void sort(int from, int to, int[] rowBuffer, double[] keyBuffer) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(from, middle, rowBuffer, keyBuffer);
+        sort(middle, to, rowBuffer, keyBuffer);
+        if (Double.compare(keys[middle - 1], keys[middle]) <= 0) {
+            return; // already in order
+        }
+
+        System.arraycopy(rows, from, rowBuffer, from, to - from);
+        System.arraycopy(keys, from, keyBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && Double.compare(keyBuffer[left], keyBuffer[right]) <= 0)) {
+                rows[i] = rowBuffer[left];
+                keys[i] = keyBuffer[left++];
+            }
+            else {
+                rows[i] = rowBuffer[right];
+                keys[i] = keyBuffer[right++];
+            }
+        }
+    }
+
+    /**
+     * @return the rows in sorted order
+     */
+    public int[] getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of rows in the index
+     */
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * @return the row at a position of the sorted order
+     */
+    public int getRow(int position) {
+        return rows[position];
+    }
+
+    /**
+     * Finds the rows whose value passes "value op constant" the way Operator.compare evaluates it.
+     * @param comparison one of Operator's comparisons other than NOT_EQUAL
+     * @return the rows that pass, as a set of row ids
+     */
+    public BitSet select(int comparison, double constant) {
+        int[] bounds = new int[4];
+        new Cursor(false).find(comparison, constant, bounds);
+        BitSet selected = new BitSet();
+        setRange(selected, bounds[0], bounds[1]);
+        setRange(selected, bounds[2], bounds[3]);
+        return selected;
+    }
+
+    private void setRange(BitSet selected, int from, int to) {
+        for (int i = from; i < to; i++) {
+            selected.set(rows[i]);
+        }
+    }
+
+    /**
+     * Finds where the rows passing a comparison lie in the sorted order, for a series of constants. When the
+     * constants come in ascending order each search starts where the one before it ended, so a sorted series is
+     * merged with the index in one pass instead of being searched for from the start every time.
+     */
+    public class Cursor {
+        private final boolean ascending;
+
+        // Where the searches for the last number ended.
+        private int notBelow = 0;
+        private int above = 0;
+        private int notLess = 0;
+        private int greater = 0;
+
+        /**
+         * @param ascending true if the constants will never decrease in Double.compare order
+         */
+        public Cursor(boolean ascending) {
+            this.ascending = ascending;
+        }
+
+        /**
+         * Sets 'bounds' to the positions [bounds[0], bounds[1]) and [bounds[2], bounds[3]) of the sorted order, which
+         * hold the rows whose value passes "value op constant" the way Operator.compare evaluates it. The ranges
+         * don't overlap, and the second one is empty for all but LESS_THAN_EQ and GREATER_THAN_EQ.
+         * @param comparison one of Operator's comparisons other than NOT_EQUAL
+         */
+        public void find(int comparison, double constant, int[] bounds) {
+            // NaN comes last in Double.compare order but passes no '<' or '>', so it can't continue a sweep.
+            boolean sweep = ascending && !Double.isNaN(constant);
+            int notBelow = firstNotBelow(constant, sweep ? this.notBelow : 0);
+            int above = firstAbove(constant, Math.max(notBelow, sweep ? this.above : 0));
+            bounds[2] = bounds[3] = 0;
+            switch (comparison) {
+                case Operator.EQUAL:
+                    bounds[0] = notBelow;
+                    bounds[1] = above;
+                    break;
+                case Operator.LESS_THAN:
+                case Operator.LESS_THAN_EQ:
+                    int notLess = firstNotLess(constant, sweep ? this.notLess : 0);
+                    bounds[0] = 0;
+                    bounds[1] = notLess;
+                    if (comparison == Operator.LESS_THAN_EQ) {
+                        bounds[2] = Math.max(notBelow, notLess);
+                        bounds[3] = Math.max(above, notLess);
+                    }
+                    if (sweep) {
+                        this.notLess = notLess;
+                    }
+                    break;
+                case Operator.GREATER_THAN:
+                case Operator.GREATER_THAN_EQ:
+                    int greater = firstGreater(constant, sweep ? this.greater : 0);
+                    if (comparison == Operator.GREATER_THAN_EQ) {
+                        bounds[0] = notBelow;
+                        bounds[1] = above;
+                        bounds[2] = greater;
+                        bounds[3] = nanStart;
+                    }
+                    else {
+                        bounds[0] = greater;
+                        bounds[1] = nanStart;
+                    }
+                    if (sweep) {
+                        this.greater = greater;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("A sorted index can't answer comparison " + comparison);
+            }
+            if (sweep) {
+                this.notBelow = notBelow;
+                this.above = above;
+            }
+        }
+    }
+
+    // Binary searches over the sorted keys from position 'low' on. firstNotBelow and firstAbove follow
+    // Double.compare, the other two follow '<' and '>', which are false for NaN and treat -0.0 and 0.0 as equal.
+
+    private int firstNotBelow(double constant, int low) {
+        int high = rows.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Double.compare(keys[middle], constant) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int firstAbove(double constant, int low) {
+        int high = rows.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Double.compare(keys[middle], constant) <= 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int firstNotLess(double constant, int low) {
+        int high = nanStart;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < constant) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int firstGreater(double constant, int low) {
+        int high = nanStart;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (!(keys[middle] > constant)) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * A column of strings stored as codes of a StringDictionary.
+ */
+public class StringColumn extends Column {
+
+    private int[] codes;
+    private StringDictionary dictionary;
+
+    public StringColumn(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+        codes = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Wraps an array whose first 'size' entries are codes of 'dictionary'.
+     */
+    public StringColumn(StringDictionary dictionary, int[] codes, int size) {
+        this.dictionary = dictionary;
+        this.codes = codes;
+        this.size = size;
+    }
+
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    /**
+     * @return the backing array, whose first size() entries are the column's codes
+     */
+    public int[] getCodes() {
+        return codes;
+    }
+
+    public void appendCode(int code) {
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, grow(codes.length, size + 1));
+        }
+        codes[size++] = code;
+    }
+
+    /**
+     * @return a column of the same strings as codes of 'target'. Each string is looked up in 'target' once, not
+     *         once per row.
+     */
+    public StringColumn recode(StringDictionary target) {
+        int[] codeOf = target.internAll(dictionary.getValues());
+        int[] recoded = new int[Math.max(size, INITIAL_CAPACITY)];
+        for (int row = 0; row < size; row++) {
+            recoded[row] = codeOf[codes[row]];
+        }
+        return new StringColumn(target, recoded, size);
+    }
+
+    @Override
+    public Object get(int row) {
+        return dictionary.get(codes[row]);
+    }
+
+    @Override
+    public int hashAt(int row) {
+        return dictionary.getHash(codes[row]);
+    }
+
+    @Override
+    public void hashRows(int[] rows, int count, int[] hashes) {
+        int[] stringHashes = dictionary.getHashes();
+        for (int i = 0; i < count; i++) {
+            hashes[i] = 31 * hashes[i] + stringHashes[codes[rows[i]]];
+        }
+    }
+
+    @Override
+    public boolean equalsAt(int row, Column other, int otherRow) {
+        if (other instanceof StringColumn) {
+            StringColumn otherColumn = (StringColumn)other;
+            if (otherColumn.dictionary == dictionary) {
+                return codes[row] == otherColumn.codes[otherRow];
+            }
+            return dictionary.get(codes[row]).equals(otherColumn.dictionary.get(otherColumn.codes[otherRow]));
+        }
+        return valuesEqual(get(row), other.get(otherRow));
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+        return value instanceof String;
+    }
+
+    @Override
+    public void append(Object value) {
+        appendCode(dictionary.intern((String)value));
+    }
+
+    @Override
+    public boolean canAppendFrom(Column source) {
+        return source instanceof StringColumn;
+    }
+
+    @Override
+    public void appendFrom(Column source, int row) {
+        StringColumn sourceColumn = (StringColumn)source;
+        if (sourceColumn.dictionary == dictionary) {
+            appendCode(sourceColumn.codes[row]);
+        }
+        else {
+            appendCode(dictionary.intern(sourceColumn.dictionary.get(sourceColumn.codes[row])));
+        }
+    }
+
+    @Override
+    public Column emptyCopy() {
+        return new StringColumn(dictionary);
+    }
+
+    @Override
+    public Column copy() {
+        StringColumn column = new StringColumn(dictionary);
+        column.codes = Arrays.copyOf(codes, Math.max(size, INITIAL_CAPACITY));
+        column.size = size;
+        return column;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps each distinct string to a small int code so string columns can store and compare codes instead of strings.
+ * Rules may run on several threads, so interning is synchronized and the value and hash arrays are only ever
+ * replaced by larger copies, which lets get() and getHash() read codes that were handed out before without locking.
+ */
+public class StringDictionary {
+
+    // Dictionaries shared by the string columns of every loaded fact with the same header, so that the columns a
+    // rule joins on usually have equal codes for equal strings.
+    private static final ConcurrentHashMap<String, StringDictionary> columnDictionaries = new ConcurrentHashMap<>();
+
+    private volatile String[] values = new String[16];
+    private volatile int[] hashes = new int[16];
+    private int size = 0;
+
+    // Open addressing table of code + 1 for each string, 0 marks an empty slot.
+    private int[] slots = new int[32];
+
+    /**
+     * @return the dictionary of the loaded columns named 'header'
+     */
+    public static StringDictionary forColumn(String header) {
+        return columnDictionaries.computeIfAbsent(header, h -> new StringDictionary());
+    }
+
+    /**
+     * @return the code of 'value', adding it to the dictionary if it isn't in it yet. Only a value that isn't in
+     * the dictionary is copied to a String, so values can be interned straight out of a parser's buffer.
+     */
+    public synchronized int intern(CharSequence value) {
+        int hash = hashOf(value);
+        int slot = find(value, hash);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+
+        int code = size;
+        if (code == values.length) {
+            hashes = Arrays.copyOf(hashes, code * 2);
+            values = Arrays.copyOf(values, code * 2);
+        }
+        hashes[code] = hash;
+        values[code] = value.toString();
+        size++;
+        slots[slot] = code + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return code;
+    }
+
+    /**
+     * Interns several strings at once, taking the lock once for all of them.
+     * @return the code of each string
+     */
+    public synchronized int[] internAll(String[] strings) {
+        int[] codes = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            codes[i] = intern(strings[i]);
+        }
+        return codes;
+    }
+
+    /**
+     * @return the code of 'value', or -1 if it isn't in the dictionary
+     */
+    public synchronized int lookup(String value) {
+        int slot = find(value, value.hashCode());
+        return slots[slot] - 1;
+    }
+
+    /**
+     * @return the slot of 'value', or the empty slot it would go in
+     */
+    private int find(CharSequence value, int hash) {
+        int[] slots = this.slots;
+        int[] hashes = this.hashes;
+        String[] values = this.values;
+        int mask = slots.length - 1;
+        int slot = DataSet.mix(hash) & mask;
+        while (slots[slot] != 0) {
+            int code = slots[slot] - 1;
+            if (hashes[code] == hash && values[code].contentEquals(value)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int code = 0; code < size; code++) {
+            int slot = DataSet.mix(hashes[code]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = code + 1;
+        }
+    }
+
+    /**
+     * @return the same hash as value.toString().hashCode()
+     */
+    private static int hashOf(CharSequence value) {
+        if (value instanceof String) {
+            return value.hashCode();
+        }
+        int hash = 0;
+        for (int i = 0; i < value.length(); i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        return hash;
+    }
+
+    public String get(int code) {
+        return values[code];
+    }
+
+    /**
+     * @return the hashCode of the string with the given code
+     */
+    public int getHash(int code) {
+        return hashes[code];
+    }
+
+    /**
+     * @return an array holding the hashCode of the string of every code handed out so far, at the code's index
+     */
+    public int[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return the strings of the dictionary, each at the index of its code
+     */
+    public synchronized String[] getValues() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
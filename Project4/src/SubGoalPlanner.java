@@ -0,0 +1,256 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Orders the subgoals of a rule body using estimates of how many rows each step produces.
+ * Invocations are added greedily, preferring ones that join on an already bound variable over ones only linked to
+ * one by a comparison, and those over cross products. Every relation or negation is placed right after the last of
+ * its variables is bound.
+ */
+public class SubGoalPlanner {
+
+    public enum Kind { INVOCATION, NEGATION, RELATION }
+
+    // Fallback selectivities for relations whose effect can't be estimated from distinct counts.
+    private static final double INEQUALITY_SELECTIVITY = 1.0 / 3;
+    private static final double NOT_EQUAL_SELECTIVITY = 0.9;
+    private static final double EXPRESSION_SELECTIVITY = 0.5;
+    private static final double NEGATION_SELECTIVITY = 0.5;
+
+    public static class Goal {
+        public Kind kind;
+        public HashSet<String> variables = new HashSet<>();
+
+        // Invocations only: the rows of the invoked set and the distinct values of each of its variables.
+        public double rows;
+        public HashMap<String, Double> distinct = new HashMap<>();
+
+        // Relations only: the operator at the root of the relation, and its operands if they are plain
+        // variables or constants (null for a nested expression).
+        public String operator;
+        public Object left;
+        public Object right;
+
+        public Goal(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * The rows and distinct values expected after a prefix of the plan.
+     */
+    private static class Estimate {
+        double rows;
+        HashMap<String, Double> distinct = new HashMap<>();
+
+        Estimate(double rows) {
+            this.rows = rows;
+        }
+
+        Estimate copy() {
+            Estimate estimate = new Estimate(rows);
+            estimate.distinct.putAll(distinct);
+            return estimate;
+        }
+
+        double distinctOf(String variable) {
+            return Math.max(1, Math.min(rows, distinct.getOrDefault(variable, rows)));
+        }
+    }
+
+    /**
+     * @param goals the subgoals of a rule body
+     * @return the positions in 'goals' in the order they should be executed; the first is always an invocation
+     */
+    public ArrayList<Integer> order(ArrayList<Goal> goals) {
+        ArrayList<Integer> plan = new ArrayList<>();
+        HashSet<Integer> remaining = new HashSet<>();
+        for (int i = 0; i < goals.size(); i++) {
+            if (goals.get(i).kind == Kind.INVOCATION) {
+                remaining.add(i);
+            }
+        }
+
+        HashSet<String> bound = new HashSet<>();
+        HashSet<Integer> placed = new HashSet<>();
+        Estimate current = null;
+
+        while (!remaining.isEmpty()) {
+            int best = -1;
+            int bestLink = 0;
+            Estimate bestEstimate = null;
+
+            for (int i = 0; i < goals.size(); i++) {
+                if (!remaining.contains(i)) { continue; }
+                Goal goal = goals.get(i);
+                int link = current == null || shares(goal.variables, bound) || linkedByEquality(goal, goals, placed, bound) ? 2 :
+                           linkedByComparison(goal, goals, placed, bound) ? 1 : 0;
+                Estimate estimate = withFilters(add(current, goal), goals, placed, union(bound, goal.variables));
+
+                // A join on a bound variable always beats a comparison join, which beats a cross product, then the
+                // smaller result wins.
+                if (best == -1 || link > bestLink || (link == bestLink && estimate.rows < bestEstimate.rows)) {
+                    best = i;
+                    bestLink = link;
+                    bestEstimate = estimate;
+                }
+            }
+
+            remaining.remove(best);
+            plan.add(best);
+            placed.add(best);
+            bound.addAll(goals.get(best).variables);
+            current = bestEstimate;
+
+            // Filter as early as possible.
+            for (int i = 0; i < goals.size(); i++) {
+                if (!placed.contains(i) && goals.get(i).kind != Kind.INVOCATION && bound.containsAll(goals.get(i).variables)) {
+                    plan.add(i);
+                    placed.add(i);
+                }
+            }
+        }
+
+        // Anything left refers to a variable no invocation binds; keep it so execution reports it.
+        for (int i = 0; i < goals.size(); i++) {
+            if (!placed.contains(i)) {
+                plan.add(i);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return true if an unplaced relation "x = y" equates a variable of 'invocation' with a bound variable, in which
+     *         case the invocation can be hash joined on it instead of cross multiplied
+     */
+    private static boolean linkedByEquality(Goal invocation, ArrayList<Goal> goals, HashSet<Integer> placed, HashSet<String> bound) {
+        for (int i = 0; i < goals.size(); i++) {
+            Goal goal = goals.get(i);
+            if (placed.contains(i) || !isVariableEquality(goal)) { continue; }
+            if ((bound.contains(goal.left) && invocation.variables.contains(goal.right)) ||
+                (bound.contains(goal.right) && invocation.variables.contains(goal.left))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if an unplaced relation such as "x < y" compares a variable of 'invocation' with a bound variable,
+     *         in which case the invocation can be joined on the comparison instead of cross multiplied
+     */
+    private static boolean linkedByComparison(Goal invocation, ArrayList<Goal> goals, HashSet<Integer> placed, HashSet<String> bound) {
+        for (int i = 0; i < goals.size(); i++) {
+            Goal goal = goals.get(i);
+            if (placed.contains(i) || !isVariableComparison(goal)) { continue; }
+            if ((bound.contains(goal.left) && invocation.variables.contains(goal.right)) ||
+                (bound.contains(goal.right) && invocation.variables.contains(goal.left))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if 'goal' is a relation "x = y" between two different variables
+     */
+    public static boolean isVariableEquality(Goal goal) {
+        return goal.kind == Kind.RELATION && goal.operator.equals("=") && goal.variables.size() == 2 &&
+               goal.variables.contains(goal.left) && goal.variables.contains(goal.right);
+    }
+
+    /**
+     * @return true if 'goal' is a relation "x < y", "x <= y", "x > y" or "x >= y" between two different variables
+     */
+    public static boolean isVariableComparison(Goal goal) {
+        return goal.kind == Kind.RELATION && goal.variables.size() == 2 &&
+               goal.variables.contains(goal.left) && goal.variables.contains(goal.right) &&
+               (goal.operator.equals("<") || goal.operator.equals("<=") ||
+                goal.operator.equals(">") || goal.operator.equals(">="));
+    }
+
+    private static boolean shares(HashSet<String> a, HashSet<String> b) {
+        for (String variable : a) {
+            if (b.contains(variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static HashSet<String> union(HashSet<String> a, HashSet<String> b) {
+        HashSet<String> result = new HashSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    /**
+     * @return the estimate after joining 'invocation' to a plan prefix (or starting with it if 'current' is null)
+     */
+    private Estimate add(Estimate current, Goal invocation) {
+        if (current == null) {
+            Estimate estimate = new Estimate(invocation.rows);
+            estimate.distinct.putAll(invocation.distinct);
+            return estimate;
+        }
+
+        Estimate estimate = current.copy();
+        double rows = current.rows * invocation.rows;
+        for (String variable : invocation.variables) {
+            if (current.distinct.containsKey(variable)) {
+                rows /= Math.max(current.distinctOf(variable), Math.max(1, invocation.distinct.getOrDefault(variable, 1.0)));
+            }
+        }
+        estimate.rows = rows;
+        for (String variable : invocation.variables) {
+            double distinct = invocation.distinct.getOrDefault(variable, invocation.rows);
+            estimate.distinct.put(variable, Math.min(distinct, current.distinct.getOrDefault(variable, distinct)));
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the estimate after also applying every relation and negation that only uses 'bound' variables
+     */
+    private Estimate withFilters(Estimate estimate, ArrayList<Goal> goals, HashSet<Integer> placed, HashSet<String> bound) {
+        Estimate filtered = estimate.copy();
+        for (int i = 0; i < goals.size(); i++) {
+            Goal goal = goals.get(i);
+            if (placed.contains(i) || goal.kind == Kind.INVOCATION || !bound.containsAll(goal.variables)) { continue; }
+            filtered.rows *= selectivity(goal, filtered);
+        }
+        return filtered;
+    }
+
+    private double selectivity(Goal goal, Estimate estimate) {
+        if (goal.kind == Kind.NEGATION) {
+            return NEGATION_SELECTIVITY;
+        }
+        switch (goal.operator) {
+            case "=":
+                boolean leftIsVariable = goal.variables.contains(goal.left);
+                boolean rightIsVariable = goal.variables.contains(goal.right);
+                if (leftIsVariable && rightIsVariable) {
+                    return 1 / Math.max(estimate.distinctOf((String)goal.left), estimate.distinctOf((String)goal.right));
+                }
+                else if (leftIsVariable && goal.right != null) {
+                    return 1 / estimate.distinctOf((String)goal.left);
+                }
+                else if (rightIsVariable && goal.left != null) {
+                    return 1 / estimate.distinctOf((String)goal.right);
+                }
+                return EXPRESSION_SELECTIVITY;
+            case "!=":
+                return NOT_EQUAL_SELECTIVITY;
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                return INEQUALITY_SELECTIVITY;
+            default:
+                return EXPRESSION_SELECTIVITY;
+        }
+    }
+}